@@ -10,20 +10,33 @@ import java.util.Objects;
 public class Greeter extends AbstractBehavior<Greeter.Greet> {
 
     public static final class Greet {
+        // 一轮对话的标识, Greeter原样带回, 同一个bot可以同时进行多轮同名的对话
+        public final long conversationId;
         public final String whom;
         public final ActorRef<Greeted> replyTo;
 
         public Greet(String whom, ActorRef<Greeted> replyTo) {
+            this(0L, whom, replyTo);
+        }
+
+        public Greet(long conversationId, String whom, ActorRef<Greeted> replyTo) {
+            this.conversationId = conversationId;
             this.whom = whom;
             this.replyTo = replyTo;
         }
     }
 
     public static final class Greeted {
+        public final long conversationId;
         public final String whom;
         public final ActorRef<Greet> from;
 
         public Greeted(String whom, ActorRef<Greet> from) {
+            this(0L, whom, from);
+        }
+
+        public Greeted(long conversationId, String whom, ActorRef<Greet> from) {
+            this.conversationId = conversationId;
             this.whom = whom;
             this.from = from;
         }
@@ -38,19 +51,21 @@ public class Greeter extends AbstractBehavior<Greeter.Greet> {
                 return false;
             }
             Greeted greeted = (Greeted) o;
-            return Objects.equals(whom, greeted.whom) &&
+            return conversationId == greeted.conversationId &&
+                    Objects.equals(whom, greeted.whom) &&
                     Objects.equals(from, greeted.from);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(whom, from);
+            return Objects.hash(conversationId, whom, from);
         }
 
         @Override
         public String toString() {
             return "Greeted{" +
-                    "whom='" + whom + '\'' +
+                    "conversationId=" + conversationId +
+                    ", whom='" + whom + '\'' +
                     ", from=" + from +
                     '}';
         }
@@ -73,7 +88,7 @@ public class Greeter extends AbstractBehavior<Greeter.Greet> {
     private Behavior<Greet> onGreet(Greet command) {
         getContext().getLog().info("Hello {}!", command.whom);
         //#greeter-send-message
-        command.replyTo.tell(new Greeted(command.whom, getContext().getSelf()));
+        command.replyTo.tell(new Greeted(command.conversationId, command.whom, getContext().getSelf()));
         //#greeter-send-message
         return this;
     }
@@ -0,0 +1,244 @@
+package com.example;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.BehaviorInterceptor;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.TypedActorContext;
+import akka.actor.typed.javadsl.*;
+import ch.qos.logback.classic.Level;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Greeter与GreeterBot之间ping-pong的消息吞吐基准测试, 测量的就是GreeterMain使用的Greeter和GreeterBot.
+ * <p>
+ * 运行: mvn compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *      java -cp target/classes:$(cat cp.txt) com.example.GreeterBenchmark 8 100000
+ * <p>
+ * 参数依次为: 并发的Greeter/bot对数, 每对的往返次数, executor列表(逗号分隔), throughput列表(逗号分隔)
+ * <p>
+ * 以pool开头时测量Greeter池路由的扩展性: pool [bot数] [每个bot的往返次数] [最大池大小, 默认CPU核数]
+ */
+public class GreeterBenchmark {
+
+    static final String DISPATCHER = "benchmark-dispatcher";
+
+    public static void main(String[] args) {
+        // 每条消息都打info日志的话测的就是日志了
+        quietGreeterLogging();
+        if (args.length > 0 && args[0].equals("pool")) {
+            poolScaling(args);
+            return;
+        }
+
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int roundTrips = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        String[] executors = (args.length > 2 ? args[2] : "fork-join-executor,thread-pool-executor").split(",");
+        String[] throughputs = (args.length > 3 ? args[3] : "1,5,100").split(",");
+
+        System.out.printf("pairs=%d roundTrips=%d cores=%d%n", pairs, roundTrips, Runtime.getRuntime().availableProcessors());
+        for (String executor : executors) {
+            for (String throughput : throughputs) {
+                // 先热身一轮, 再正式测量
+                run(executor, Integer.parseInt(throughput), pairs, Math.max(1, roundTrips / 10));
+                Result result = run(executor, Integer.parseInt(throughput), pairs, roundTrips);
+                System.out.println(result);
+            }
+        }
+    }
+
+    // 所有bot共享一个Greeter池, 池大小从1增加到maxPoolSize
+    static void poolScaling(String[] args) {
+        int bots = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        int maxPoolSize = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        System.out.printf("bots=%d roundTrips=%d cores=%d%n", bots, roundTrips, Runtime.getRuntime().availableProcessors());
+        for (GreeterMain.Routing routing : GreeterMain.Routing.values()) {
+            for (int poolSize = 1; poolSize <= maxPoolSize; poolSize++) {
+                runPool(poolSize, routing, bots, Math.max(1, roundTrips / 10));
+                System.out.println(runPool(poolSize, routing, bots, roundTrips));
+            }
+        }
+    }
+
+    static void quietGreeterLogging() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("com.example")).setLevel(Level.WARN);
+    }
+
+    static Config dispatcherConfig(String executor, int throughput) {
+        return ConfigFactory.parseString(
+                DISPATCHER + " {\n" +
+                "  type = Dispatcher\n" +
+                "  executor = \"" + executor + "\"\n" +
+                "  throughput = " + throughput + "\n" +
+                "}\n");
+    }
+
+    // 在新的ActorSystem里跑一轮, 阻塞直到所有pair完成
+    public static Result run(String executor, int throughput, int pairs, int roundTrips) {
+        String setup = String.format("%-20s throughput=%-4d", executor, throughput);
+        return run(setup, dispatcherConfig(executor, throughput), 0, null, pairs, roundTrips);
+    }
+
+    // 所有bot都经由同一个Greeter池路由发送Greet
+    public static Result runPool(int poolSize, GreeterMain.Routing routing, int bots, int roundTrips) {
+        String setup = String.format("pool=%-3d %-15s", poolSize, routing);
+        return run(setup, dispatcherConfig("fork-join-executor", 5), poolSize, routing, bots, roundTrips);
+    }
+
+    private static Result run(String setup, Config config, int poolSize, GreeterMain.Routing routing,
+                              int pairs, int roundTrips) {
+        CompletableFuture<Result> done = new CompletableFuture<>();
+        ActorSystem<Coordinator.Command> system = ActorSystem.create(
+                Coordinator.create(setup, poolSize, routing, pairs, roundTrips, done),
+                "greeter-benchmark",
+                config.withFallback(ConfigFactory.load()));
+        try {
+            return done.get(10, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            throw new IllegalStateException("Benchmark run failed", e);
+        } finally {
+            system.terminate();
+            system.getWhenTerminated().toCompletableFuture().join();
+        }
+    }
+
+    public static final class Result {
+        public final String setup;
+        public final int pairs;
+        public final int roundTrips;
+        public final long elapsedNanos;
+        public final LatencyHistogram latency;
+
+        Result(String setup, int pairs, int roundTrips, long elapsedNanos, LatencyHistogram latency) {
+            this.setup = setup;
+            this.pairs = pairs;
+            this.roundTrips = roundTrips;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        // 每次往返包含Greet和Greeted两条消息
+        public long messages() {
+            return 2L * pairs * roundTrips;
+        }
+
+        public double messagesPerSecond() {
+            return messages() * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %,12.0f msg/s  rtt(us) p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                    setup, messagesPerSecond(),
+                    latency.percentile(0.5) / 1e3, latency.percentile(0.9) / 1e3,
+                    latency.percentile(0.99) / 1e3, latency.percentile(0.999) / 1e3,
+                    latency.max() / 1e3);
+        }
+    }
+
+    // 负责创建所有pair并汇总结果, poolSize为0时每个bot有专属的Greeter, 否则共享一个Greeter池
+    static class Coordinator extends AbstractBehavior<Coordinator.Command> {
+
+        interface Command {
+        }
+
+        // 第pair对的对话结束, conversationId即pair下标
+        static final class PairFinished implements Command {
+            final int pair;
+
+            PairFinished(int pair) {
+                this.pair = pair;
+            }
+        }
+
+        static Behavior<Command> create(String setup, int poolSize, GreeterMain.Routing routing, int pairs, int roundTrips,
+                                        CompletableFuture<Result> done) {
+            return Behaviors.setup(context -> new Coordinator(context, setup, poolSize, routing, pairs, roundTrips, done));
+        }
+
+        private final String setup;
+        private final int pairs;
+        private final int roundTrips;
+        private final CompletableFuture<Result> done;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final List<LatencyHistogram> pairLatencies;
+        private final long startNanos;
+        private int finished;
+
+        private Coordinator(ActorContext<Command> context, String setup, int poolSize, GreeterMain.Routing routing,
+                            int pairs, int roundTrips, CompletableFuture<Result> done) {
+            super(context);
+            this.setup = setup;
+            this.pairs = pairs;
+            this.roundTrips = roundTrips;
+            this.done = done;
+
+            DispatcherSelector dispatcher = DispatcherSelector.fromConfig(DISPATCHER);
+            ActorRef<GreeterBot.ConversationFinished> finishedAdapter = context.messageAdapter(
+                    GreeterBot.ConversationFinished.class, message -> new PairFinished((int) message.conversationId));
+            List<ActorRef<Greeter.Greet>> greeters = new ArrayList<>(pairs);
+            List<ActorRef<Greeter.Greeted>> bots = new ArrayList<>(pairs);
+            pairLatencies = new ArrayList<>(pairs);
+            ActorRef<Greeter.Greet> pool = poolSize > 0
+                    ? context.spawn(GreeterMain.greeterPool(poolSize, routing).withRouteeProps(dispatcher), "greeter-pool", dispatcher)
+                    : null;
+            for (int i = 0; i < pairs; i++) {
+                greeters.add(pool != null ? pool : context.spawn(Greeter.create(), "greeter-" + i, dispatcher));
+                pairLatencies.add(new LatencyHistogram());
+                Behavior<Greeter.Greeted> bot = GreeterBot.create(roundTrips, pool, finishedAdapter);
+                bots.add(context.spawn(timed(bot, pairLatencies.get(i)), "bot-" + i, dispatcher));
+            }
+            startNanos = System.nanoTime();
+            for (int i = 0; i < pairs; i++) {
+                greeters.get(i).tell(new Greeter.Greet(i, "pair-" + i, bots.get(i)));
+            }
+        }
+
+        @Override
+        public Receive<Command> createReceive() {
+            return newReceiveBuilder().onMessage(PairFinished.class, this::onPairFinished).build();
+        }
+
+        private Behavior<Command> onPairFinished(PairFinished message) {
+            latency.merge(pairLatencies.get(message.pair));
+            finished++;
+            if (finished == pairs) {
+                long elapsed = System.nanoTime() - startNanos;
+                done.complete(new Result(setup, pairs, roundTrips, elapsed, latency));
+                return Behaviors.stopped();
+            }
+            return this;
+        }
+    }
+
+    // 在GreeterBot外面记录相邻两条Greeted的间隔, 即一次往返的耗时, bot本身不变.
+    // 每个bot只进行一轮对话; 第一条Greet由Coordinator发出, 不计入往返耗时.
+    // latency只由bot写入, 对话结束的消息在最后一次写入之后发出, Coordinator收到后再读取
+    static Behavior<Greeter.Greeted> timed(Behavior<Greeter.Greeted> bot, LatencyHistogram latency) {
+        return Behaviors.intercept(() -> new BehaviorInterceptor<Greeter.Greeted, Greeter.Greeted>(Greeter.Greeted.class) {
+            private long lastReceivedNanos = -1;
+
+            @Override
+            public Behavior<Greeter.Greeted> aroundReceive(TypedActorContext<Greeter.Greeted> context,
+                                                           Greeter.Greeted message,
+                                                           ReceiveTarget<Greeter.Greeted> target) {
+                long now = System.nanoTime();
+                if (lastReceivedNanos >= 0) {
+                    latency.record(now - lastReceivedNanos);
+                }
+                lastReceivedNanos = now;
+                return target.apply(context, message);
+            }
+        }, bot);
+    }
+}
@@ -1,20 +1,47 @@
 package com.example;
 
+import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.javadsl.*;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class GreeterBot extends AbstractBehavior<Greeter.Greeted> {
 
+    // 一轮对话往返max次后发给listener
+    public static final class ConversationFinished {
+        public final long conversationId;
+        public final String whom;
+
+        public ConversationFinished(long conversationId, String whom) {
+            this.conversationId = conversationId;
+            this.whom = whom;
+        }
+    }
+
     public static Behavior<Greeter.Greeted> create(int max) {
-        return Behaviors.setup(context -> new GreeterBot(context, max));
+        return create(max, null, null);
+    }
+
+    // via不为空时每次都经由via(如池路由)发送, 否则直接回复给应答的Greeter; listener可以为空
+    public static Behavior<Greeter.Greeted> create(int max, ActorRef<Greeter.Greet> via,
+                                                   ActorRef<ConversationFinished> listener) {
+        return Behaviors.setup(context -> new GreeterBot(context, max, via, listener));
     }
 
     private final int max;
-    private int greetingCounter;
+    private final ActorRef<Greeter.Greet> via;
+    private final ActorRef<ConversationFinished> listener;
+    // bot会被复用, 同一个whom也可能同时有多轮对话, 因此按conversationId分别计数, 一轮对话结束后移除
+    private final Map<Long, Integer> greetingCounters = new HashMap<>();
 
-    private GreeterBot(ActorContext<Greeter.Greeted> context, int max) {
+    private GreeterBot(ActorContext<Greeter.Greeted> context, int max, ActorRef<Greeter.Greet> via,
+                       ActorRef<ConversationFinished> listener) {
         super(context);
         this.max = max;
+        this.via = via;
+        this.listener = listener;
     }
 
     @Override
@@ -23,13 +50,17 @@ public class GreeterBot extends AbstractBehavior<Greeter.Greeted> {
     }
 
     private Behavior<Greeter.Greeted> onGreeted(Greeter.Greeted message) {
-        greetingCounter++;
+        int greetingCounter = greetingCounters.merge(message.conversationId, 1, Integer::sum);
         getContext().getLog().info("Greeting {} for {}", greetingCounter, message.whom);
         if (greetingCounter == max) {
-            return Behaviors.stopped();
+            greetingCounters.remove(message.conversationId);
+            if (listener != null) {
+                listener.tell(new ConversationFinished(message.conversationId, message.whom));
+            }
         } else {
-            message.from.tell(new Greeter.Greet(message.whom, getContext().getSelf()));
-            return this;
+            ActorRef<Greeter.Greet> next = via != null ? via : message.from;
+            next.tell(new Greeter.Greet(message.conversationId, message.whom, getContext().getSelf()));
         }
+        return this;
     }
 }
@@ -2,8 +2,12 @@ package com.example;
 
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.SupervisorStrategy;
 import akka.actor.typed.javadsl.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class GreeterMain extends AbstractBehavior<GreeterMain.SayHello> {
 
     public static class SayHello {
@@ -14,17 +18,54 @@ public class GreeterMain extends AbstractBehavior<GreeterMain.SayHello> {
         }
     }
 
+    // greeter池的路由策略
+    public enum Routing {
+        ROUND_ROBIN,
+        // 按whom做一致性哈希, 同一个名字总是由同一个greeter处理
+        CONSISTENT_HASH
+    }
+
     private final ActorRef<Greeter.Greet> greeter;
+    // 复用的GreeterBot, 不再为每个SayHello新建
+    private final List<ActorRef<Greeter.Greeted>> bots;
+    private int nextBot;
+    // 每个SayHello开始一轮新的对话
+    private long nextConversationId;
 
     public static Behavior<SayHello> create() {
-        return Behaviors.setup(GreeterMain::new);
+        return create(1, Routing.ROUND_ROBIN);
+    }
+
+    public static Behavior<SayHello> create(int poolSize, Routing routing) {
+        return Behaviors.setup(context -> new GreeterMain(context, poolSize, routing));
     }
 
-    private GreeterMain(ActorContext<SayHello> context) {
+    // 包含poolSize个Greeter的池路由, 路由器本身也是一个actor
+    public static PoolRouter<Greeter.Greet> greeterPool(int poolSize, Routing routing) {
+        PoolRouter<Greeter.Greet> pool = Routers.pool(poolSize,
+                Behaviors.supervise(Greeter.create()).onFailure(SupervisorStrategy.restart()));
+        switch (routing) {
+            case CONSISTENT_HASH:
+                return pool.withConsistentHashingRouting(10, greet -> greet.whom);
+            case ROUND_ROBIN:
+            default:
+                return pool.withRoundRobinRouting();
+        }
+    }
+
+    private GreeterMain(ActorContext<SayHello> context, int poolSize, Routing routing) {
         super(context);
         //#create-actors
-        greeter = context.spawn(Greeter.create(), "greeter");
+        if (poolSize <= 1) {
+            greeter = context.spawn(Greeter.create(), "greeter");
+        } else {
+            greeter = context.spawn(greeterPool(poolSize, routing), "greeter");
+        }
         //#create-actors
+        bots = new ArrayList<>(Math.max(1, poolSize));
+        for (int i = 0; i < Math.max(1, poolSize); i++) {
+            bots.add(context.spawn(GreeterBot.create(3), "bot-" + i));
+        }
     }
 
     @Override
@@ -36,9 +77,9 @@ public class GreeterMain extends AbstractBehavior<GreeterMain.SayHello> {
         getContext().getLog().info("Wow {}!", command.name);
         //#create-actors
         // ActorRef<Greeter.Greet> greeter = getContext().spawn(Greeter.create(), "greeter");
-        ActorRef<Greeter.Greeted> replyTo =
-                getContext().spawn(GreeterBot.create(3), command.name);
-        greeter.tell(new Greeter.Greet(command.name, replyTo));
+        ActorRef<Greeter.Greeted> replyTo = bots.get(nextBot);
+        nextBot = (nextBot + 1) % bots.size();
+        greeter.tell(new Greeter.Greet(nextConversationId++, command.name, replyTo));
         //#create-actors
         return this;
     }
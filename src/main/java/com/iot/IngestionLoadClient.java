@@ -0,0 +1,121 @@
+package com.iot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IngestionServer的压测客户端, 多个线程各自循环POST同一个批次, 结束后输出每秒请求数和每秒读数.
+ * <p>
+ * 先启动: java -cp ... com.iot.IotMain --http-port 8080
+ * 再运行: java -cp ... com.iot.IngestionLoadClient [url] [binary|json] [线程数] [每线程请求数] [每请求读数] [Group数] [每Group设备数]
+ */
+public class IngestionLoadClient {
+
+    public static void main(String[] args) throws Exception {
+        URL url = new URL(args.length > 0 ? args[0] : "http://127.0.0.1:8080" + IngestionServer.PATH);
+        boolean json = args.length > 1 && args[1].equals("json");
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 1_000;
+        int readingsPerRequest = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+        int groups = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        int devicesPerGroup = args.length > 6 ? Integer.parseInt(args[6]) : 1_000;
+
+        byte[] body = json
+                ? jsonBody(readingsPerRequest, groups, devicesPerGroup)
+                : binaryBody(readingsPerRequest, groups, devicesPerGroup);
+        System.out.printf("%s format=%s threads=%d requests/thread=%d readings/request=%d body=%d bytes%n",
+                url, json ? "json" : "binary", threads, requests, readingsPerRequest, body.length);
+
+        AtomicLong failures = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < requests; i++) {
+                    try {
+                        if (post(url, json, body) != 200) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }, "load-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long total = (long) threads * requests;
+        System.out.printf("%,d requests in %.2f s, %,d failed: %,.0f requests/s, %,.0f readings/s%n",
+                total, seconds, failures.get(), total / seconds, total * readingsPerRequest / seconds);
+    }
+
+    private static int post(URL url, boolean json, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", json ? "application/json" : "application/octet-stream");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        // 读完响应体, 让连接可以被keep-alive复用
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                byte[] buffer = new byte[256];
+                while (in.read(buffer) >= 0) {
+                    // 丢弃
+                }
+            }
+        }
+        return status;
+    }
+
+    // 读数依次分给各个Group, 同一Group的读数连续写入一个块
+    static byte[] binaryBody(int readings, int groups, int devicesPerGroup) throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ReadingCodec.writeBinaryHeader(out);
+        for (int g = 0; g < groups; g++) {
+            int count = readings / groups + (g < readings % groups ? 1 : 0);
+            List<String> deviceIds = new ArrayList<>(count);
+            double[] values = new double[count];
+            for (int i = 0; i < count; i++) {
+                deviceIds.add("device-" + random.nextInt(devicesPerGroup));
+                values[i] = 15 + random.nextDouble() * 10;
+            }
+            ReadingCodec.writeBinaryGroup(out, "group-" + g, deviceIds, values);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static byte[] jsonBody(int readings, int groups, int devicesPerGroup) {
+        Random random = new Random(42);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < readings; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"groupId\":\"group-").append(i % groups)
+                    .append("\",\"deviceId\":\"device-").append(random.nextInt(devicesPerGroup))
+                    .append("\",\"value\":").append(15 + random.nextDouble() * 10).append('}');
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,165 @@
+package com.iot;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import com.iot.devices.DeviceManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 内嵌的HTTP读数接入端点, 基于JDK自带的HttpServer.
+ * <p>
+ * POST /readings, Content-Type为application/json时按JSON解码, 否则按ReadingCodec的二进制格式解码.
+ * 解码出的读数按Group攒成不超过batch-size条的批次, 经IotClient发给DeviceManager;
+ * 所有批次都确认后才回复200和{"readings":n,"batches":m}. 格式错误回复400, Group过载回复503, 超时回复504,
+ * 格式错误前已经攒满发出的批次不会撤回.
+ */
+public final class IngestionServer implements AutoCloseable {
+
+    public static final String PATH = "/readings";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // 所有处理线程共用; IotClient按发送顺序分配requestId, 并发请求的批次不会被Device当作重复或迟到的读数
+    private final IotClient client;
+    private final int batchSize;
+
+    // 使用ActorSystem配置中的iot.http, port为0时随机分配端口
+    public static IngestionServer start(ActorSystem<?> system, ActorRef<DeviceManager.Command> deviceManager, int port)
+            throws IOException {
+        Config c = system.settings().config().getConfig("iot.http");
+        IotClient client = IotClient.create(system, deviceManager,
+                system.settings().config().getDuration("iot.client.request-timeout"), 0, Duration.ZERO);
+        return new IngestionServer(new InetSocketAddress(c.getString("interface"), port), client,
+                c.getInt("batch-size"), c.getInt("threads"));
+    }
+
+    private IngestionServer(InetSocketAddress address, IotClient client, int batchSize, int threads) throws IOException {
+        this.client = client;
+        this.batchSize = batchSize;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+        client.close();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "{\"error\":\"POST readings to " + PATH + "\"}");
+                return;
+            }
+            BatchingSink sink = new BatchingSink();
+            int readings;
+            try (InputStream body = new BufferedInputStream(exchange.getRequestBody())) {
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                if (contentType != null && contentType.startsWith("application/json")) {
+                    readings = ReadingCodec.readJson(new InputStreamReader(body, StandardCharsets.UTF_8), sink);
+                } else {
+                    readings = ReadingCodec.readBinary(body, sink);
+                }
+            }
+            sink.sendRemaining();
+            // IotClient保证每个批次最终都会完成或超时
+            CompletableFuture.allOf(sink.acks.toArray(new CompletableFuture<?>[0])).join();
+            respond(exchange, 200, "{\"readings\":" + readings + ",\"batches\":" + sink.acks.size() + "}");
+        } catch (ReadingCodec.MalformedReadingsException e) {
+            respond(exchange, 400, error(e.getMessage()));
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IotClient.OverloadedException) {
+                respond(exchange, 503, error(e.getCause().getMessage()));
+            } else if (e.getCause() instanceof TimeoutException) {
+                respond(exchange, 504, error(e.getCause().getMessage()));
+            } else {
+                respond(exchange, 500, error(String.valueOf(e.getCause())));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":\"" + String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // 一个请求内按Group攒批次, 攒满即发送, 不等请求体读完
+    private final class BatchingSink implements ReadingCodec.Sink {
+        private final Map<String, GroupBatch> batches = new HashMap<>();
+        final List<CompletableFuture<Void>> acks = new ArrayList<>();
+
+        @Override
+        public void reading(String groupId, String deviceId, double value) {
+            GroupBatch batch = batches.computeIfAbsent(groupId, g -> new GroupBatch());
+            batch.add(deviceId, value);
+            if (batch.deviceIds.size() >= batchSize) {
+                batches.remove(groupId);
+                send(groupId, batch);
+            }
+        }
+
+        void sendRemaining() {
+            for (Map.Entry<String, GroupBatch> entry : batches.entrySet()) {
+                send(entry.getKey(), entry.getValue());
+            }
+            batches.clear();
+        }
+
+        private void send(String groupId, GroupBatch batch) {
+            acks.add(client.recordTemperatures(groupId, batch.deviceIds, batch.values).toCompletableFuture());
+        }
+    }
+
+    private static final class GroupBatch {
+        final List<String> deviceIds = new ArrayList<>();
+        double[] values = new double[16];
+
+        void add(String deviceId, double value) {
+            if (deviceIds.size() == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[deviceIds.size()] = value;
+            deviceIds.add(deviceId);
+        }
+    }
+}
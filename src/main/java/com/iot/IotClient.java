@@ -0,0 +1,393 @@
+package com.iot;
+
+import akka.actor.Cancellable;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import com.iot.devices.Device;
+import com.iot.devices.DeviceManager;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+
+/**
+ * 供非actor代码(网关等)使用的客户端, 所有方法都是线程安全的.
+ * <p>
+ * 所有请求共用一个长期存在的回复actor, 回复按requestId(注册请求按groupId/deviceId)找到对应的future完成,
+ * 不会为每次调用创建临时actor. 超过request-timeout没有回复的请求以TimeoutException失败,
+ * 被准入控制拒绝的请求以OverloadedException失败.
+ * <p>
+ * batch-size大于0时, recordTemperature(groupId, deviceId, value)先在客户端按Group缓存,
+ * 攒满batch-size条或batch-flush-interval到期后合并成一条RecordGroupTemperatures发送, 同一批次的记录共用一个future.
+ * <p>
+ * Device按发送方对温度记录去重, 要求同一客户端的requestId按发送顺序递增: 分配requestId和发送在同一把锁内完成,
+ * 起始值取自创建时的时间戳, 重新创建的客户端不会与之前的客户端重复.
+ */
+public final class IotClient implements AutoCloseable {
+
+    public static final class OverloadedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public OverloadedException(String groupId) {
+            super("Device group " + groupId + " is overloaded, retry later");
+        }
+    }
+
+    private static final AtomicInteger CLIENT_COUNTER = new AtomicInteger();
+
+    private final ActorRef<DeviceManager.Command> deviceManager;
+    private final long requestTimeoutNanos;
+    private final int batchSize;
+    private final ActorRef<Object> replyActor;
+    private final Optional<Cancellable> flushTask;
+
+    // 由sendLock保护
+    private final Object sendLock = new Object();
+    private long nextRequestId;
+    // requestId -> 等待回复的请求
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    // groupId/deviceId -> 等待回复的注册请求, 同一设备的多个注册请求按发送顺序完成
+    private final Map<String, ArrayDeque<Pending>> pendingTracks = new ConcurrentHashMap<>();
+    // groupId -> 未发送的批次, 由batchLock保护. 需要两把锁时先取batchLock再取sendLock
+    private final Object batchLock = new Object();
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    private static final class Pending {
+        final CompletableFuture<?> future;
+        final String groupId;
+        final long deadlineNanos;
+
+        Pending(CompletableFuture<?> future, String groupId, long deadlineNanos) {
+            this.future = future;
+            this.groupId = groupId;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private static final class Batch {
+        final List<String> deviceIds = new ArrayList<>();
+        double[] values = new double[16];
+        final CompletableFuture<Void> recorded = new CompletableFuture<>();
+
+        void add(String deviceId, double value) {
+            if (deviceIds.size() == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[deviceIds.size()] = value;
+            deviceIds.add(deviceId);
+        }
+    }
+
+    // 使用ActorSystem配置中的iot.client
+    public static IotClient create(ActorSystem<?> system, ActorRef<DeviceManager.Command> deviceManager) {
+        Config c = system.settings().config().getConfig("iot.client");
+        return create(system, deviceManager, c.getDuration("request-timeout"), c.getInt("batch-size"),
+                c.getDuration("batch-flush-interval"));
+    }
+
+    public static IotClient create(ActorSystem<?> system, ActorRef<DeviceManager.Command> deviceManager,
+                                   Duration requestTimeout, int batchSize, Duration batchFlushInterval) {
+        return new IotClient(system, deviceManager, requestTimeout, batchSize, batchFlushInterval);
+    }
+
+    private IotClient(ActorSystem<?> system, ActorRef<DeviceManager.Command> deviceManager,
+                      Duration requestTimeout, int batchSize, Duration batchFlushInterval) {
+        this.deviceManager = deviceManager;
+        this.requestTimeoutNanos = requestTimeout.toNanos();
+        this.batchSize = batchSize;
+        // 每毫秒留出2^20个requestId, 之后创建的客户端从更大的值开始
+        this.nextRequestId = System.currentTimeMillis() << 20;
+        // 超时检查不需要很精确, 每个超时周期检查几次即可
+        Duration sweepInterval = requestTimeout.dividedBy(4).isZero() ? requestTimeout : requestTimeout.dividedBy(4);
+        this.replyActor = system.systemActorOf(ReplyActor.create(this, sweepInterval),
+                "iot-client-" + CLIENT_COUNTER.incrementAndGet(), Props.empty());
+        this.flushTask = batchSize > 0
+                ? Optional.of(system.scheduler().scheduleWithFixedDelay(batchFlushInterval, batchFlushInterval,
+                        this::flush, system.executionContext()))
+                : Optional.empty();
+    }
+
+    public CompletionStage<ActorRef<Device.Command>> trackDevice(String groupId, String deviceId) {
+        CompletableFuture<ActorRef<Device.Command>> future = new CompletableFuture<>();
+        Pending p = new Pending(future, groupId, System.nanoTime() + requestTimeoutNanos);
+        pendingTracks.compute(trackKey(groupId, deviceId), (key, queue) -> {
+            ArrayDeque<Pending> q = queue != null ? queue : new ArrayDeque<>();
+            q.add(p);
+            return q;
+        });
+        deviceManager.tell(new DeviceManager.RequestTrackDevice(groupId, deviceId, replyActor.narrow()));
+        return future;
+    }
+
+    // 直接发给已注册的设备, 不经过DeviceManager的准入控制
+    public CompletionStage<Void> recordTemperature(ActorRef<Device.Command> device, double value) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        send(device, future, null, 1, requestId -> new Device.RecordTemperature(requestId, value, replyActor.narrow()));
+        return future;
+    }
+
+    // 不需要先注册设备, 不存在的设备由Group自动创建
+    public CompletionStage<Void> recordTemperature(String groupId, String deviceId, double value) {
+        if (batchSize <= 0) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            send(deviceManager, future, groupId, 1, requestId -> new DeviceManager.RecordGroupTemperatures(requestId,
+                    groupId, Collections.singletonList(deviceId), new double[]{value}, replyActor.narrow()));
+            return future;
+        }
+        // 批次在batchLock内发出, 先攒入的读数总是先分到requestId, 不会被之后的批次当作更新的读数覆盖
+        synchronized (batchLock) {
+            Batch batch = batches.computeIfAbsent(groupId, g -> new Batch());
+            batch.add(deviceId, value);
+            if (batch.deviceIds.size() >= batchSize) {
+                send(groupId, batches.remove(groupId));
+            }
+            return batch.recorded;
+        }
+    }
+
+    // 一次发送多条记录, 不经过客户端的批次缓存
+    public CompletionStage<Void> recordTemperatures(String groupId, List<String> deviceIds, double[] values) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        send(deviceManager, future, groupId, deviceIds.size(), requestId ->
+                new DeviceManager.RecordGroupTemperatures(requestId, groupId, deviceIds, values, replyActor.narrow()));
+        return future;
+    }
+
+    public CompletionStage<Optional<Double>> readTemperature(ActorRef<Device.Command> device) {
+        CompletableFuture<Optional<Double>> future = new CompletableFuture<>();
+        send(device, future, null, 1, requestId -> new Device.ReadTemperature(requestId, replyActor.narrow()));
+        return future;
+    }
+
+    public CompletionStage<Set<String>> deviceList(String groupId) {
+        CompletableFuture<Set<String>> future = new CompletableFuture<>();
+        send(deviceManager, future, groupId, 1, requestId ->
+                new DeviceManager.RequestDeviceList(requestId, groupId, replyActor.narrow()));
+        return future;
+    }
+
+    public CompletionStage<Map<String, DeviceManager.TemperatureReading>> allTemperatures(String groupId) {
+        CompletableFuture<Map<String, DeviceManager.TemperatureReading>> future = new CompletableFuture<>();
+        send(deviceManager, future, groupId, 1, requestId ->
+                new DeviceManager.RequestAllTemperatures(requestId, groupId, replyActor.narrow()));
+        return future;
+    }
+
+    // 立即发送所有未攒满的批次
+    public void flush() {
+        synchronized (batchLock) {
+            for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+                send(entry.getKey(), entry.getValue());
+            }
+            batches.clear();
+        }
+    }
+
+    // 发送剩余批次, 回复actor在所有已发出的请求完成或超时后停止, 之后不应再调用
+    @Override
+    public void close() {
+        flushTask.ifPresent(Cancellable::cancel);
+        flush();
+        replyActor.tell(ReplyActor.Stop.INSTANCE);
+    }
+
+    private void send(String groupId, Batch batch) {
+        send(deviceManager, batch.recorded, groupId, batch.deviceIds.size(), requestId ->
+                new DeviceManager.RecordGroupTemperatures(requestId, groupId, batch.deviceIds, batch.values,
+                        replyActor.narrow()));
+    }
+
+    /**
+     * 分配requestId并发送, 批量记录时每条读数占用一个requestId.
+     * 两步在同一把锁内完成, 否则并发调用者分到的requestId可能以相反的顺序进入邮箱, 较小的一个会被Device当作迟到的读数.
+     */
+    private <T> void send(ActorRef<T> target, CompletableFuture<?> future, String groupId, int ids,
+                          LongFunction<T> message) {
+        Pending p = new Pending(future, groupId, System.nanoTime() + requestTimeoutNanos);
+        synchronized (sendLock) {
+            long requestId = nextRequestId;
+            nextRequestId += ids;
+            pending.put(requestId, p);
+            target.tell(message.apply(requestId));
+        }
+    }
+
+    private static String trackKey(String groupId, String deviceId) {
+        return groupId + '/' + deviceId;
+    }
+
+    // 回复到达时请求可能已经超时, 此时什么也不做
+    @SuppressWarnings("unchecked")
+    private <T> void complete(long requestId, boolean overloaded, T value) {
+        Pending p = pending.remove(requestId);
+        if (p == null) {
+            return;
+        }
+        if (overloaded) {
+            p.future.completeExceptionally(new OverloadedException(p.groupId));
+        } else {
+            ((CompletableFuture<T>) p.future).complete(value);
+        }
+    }
+
+    /**
+     * 客户端唯一的回复actor, 接收所有请求的回复并完成对应的future.
+     */
+    static final class ReplyActor extends AbstractBehavior<Object> {
+
+        enum Stop {
+            INSTANCE
+        }
+
+        private enum SweepTimeouts {
+            INSTANCE
+        }
+
+        static Behavior<Object> create(IotClient client, Duration sweepInterval) {
+            return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                    new ReplyActor(context, timers, client, sweepInterval)));
+        }
+
+        private final IotClient client;
+        // 收到Stop后等待已发出的请求完成
+        private boolean closed;
+
+        private ReplyActor(ActorContext<Object> context, TimerScheduler<Object> timers, IotClient client,
+                           Duration sweepInterval) {
+            super(context);
+            this.client = client;
+            timers.startTimerWithFixedDelay(SweepTimeouts.INSTANCE, sweepInterval);
+        }
+
+        @Override
+        public Receive<Object> createReceive() {
+            return newReceiveBuilder()
+                    .onMessage(DeviceManager.DeviceRegistered.class, this::onDeviceRegistered)
+                    .onMessage(Device.TemperatureRecorded.class, this::onTemperatureRecorded)
+                    .onMessage(DeviceManager.GroupTemperaturesRecorded.class, this::onGroupTemperaturesRecorded)
+                    .onMessage(Device.RespondTemperature.class, this::onRespondTemperature)
+                    .onMessage(DeviceManager.ReplyDeviceList.class, this::onReplyDeviceList)
+                    .onMessage(DeviceManager.RespondAllTemperatures.class, this::onRespondAllTemperatures)
+                    .onMessage(SweepTimeouts.class, m -> onSweepTimeouts())
+                    .onMessage(Stop.class, m -> onStop())
+                    .onSignal(PostStop.class, signal -> onPostStop())
+                    .build();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Behavior<Object> onDeviceRegistered(DeviceManager.DeviceRegistered r) {
+            Pending[] taken = new Pending[1];
+            client.pendingTracks.computeIfPresent(trackKey(r.groupId, r.deviceId), (key, queue) -> {
+                taken[0] = queue.poll();
+                return queue.isEmpty() ? null : queue;
+            });
+            if (taken[0] != null) {
+                CompletableFuture<ActorRef<Device.Command>> future =
+                        (CompletableFuture<ActorRef<Device.Command>>) taken[0].future;
+                if (r.overloaded) {
+                    future.completeExceptionally(new OverloadedException(r.groupId));
+                } else {
+                    future.complete(r.device);
+                }
+            }
+            return stopIfClosed();
+        }
+
+        private Behavior<Object> onTemperatureRecorded(Device.TemperatureRecorded r) {
+            client.complete(r.requestId, false, null);
+            return stopIfClosed();
+        }
+
+        private Behavior<Object> onGroupTemperaturesRecorded(DeviceManager.GroupTemperaturesRecorded r) {
+            client.complete(r.requestId, r.overloaded, null);
+            return stopIfClosed();
+        }
+
+        private Behavior<Object> onRespondTemperature(Device.RespondTemperature r) {
+            client.complete(r.requestId, false, r.value);
+            return stopIfClosed();
+        }
+
+        private Behavior<Object> onReplyDeviceList(DeviceManager.ReplyDeviceList r) {
+            client.complete(r.requestId, r.overloaded, r.ids);
+            return stopIfClosed();
+        }
+
+        private Behavior<Object> onRespondAllTemperatures(DeviceManager.RespondAllTemperatures r) {
+            client.complete(r.requestId, r.overloaded, r.temperatures);
+            return stopIfClosed();
+        }
+
+        private Behavior<Object> onStop() {
+            closed = true;
+            return stopIfClosed();
+        }
+
+        private Behavior<Object> stopIfClosed() {
+            return closed && client.pending.isEmpty() && client.pendingTracks.isEmpty() ? Behaviors.stopped() : this;
+        }
+
+        private Behavior<Object> onSweepTimeouts() {
+            long now = System.nanoTime();
+            Iterator<Pending> it = client.pending.values().iterator();
+            while (it.hasNext()) {
+                Pending p = it.next();
+                if (now - p.deadlineNanos > 0) {
+                    it.remove();
+                    p.future.completeExceptionally(new TimeoutException("No reply within the request timeout"));
+                }
+            }
+            for (String key : client.pendingTracks.keySet()) {
+                client.pendingTracks.computeIfPresent(key, (k, queue) -> {
+                    // 同一个key的注册请求按发送顺序排列, 只需要检查队首
+                    while (!queue.isEmpty() && now - queue.peek().deadlineNanos > 0) {
+                        queue.poll().future.completeExceptionally(
+                                new TimeoutException("No reply to track " + k + " within the request timeout"));
+                    }
+                    return queue.isEmpty() ? null : queue;
+                });
+            }
+            return stopIfClosed();
+        }
+
+        // ActorSystem关闭时可能还有未完成的请求
+        private Behavior<Object> onPostStop() {
+            IllegalStateException stopped = new IllegalStateException("IotClient stopped");
+            for (Pending p : client.pending.values()) {
+                p.future.completeExceptionally(stopped);
+            }
+            client.pending.clear();
+            for (ArrayDeque<Pending> queue : client.pendingTracks.values()) {
+                for (Pending p : queue) {
+                    p.future.completeExceptionally(stopped);
+                }
+            }
+            client.pendingTracks.clear();
+            return this;
+        }
+    }
+
+}
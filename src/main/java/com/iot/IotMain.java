@@ -1,10 +1,27 @@
 package com.iot;
 
 import akka.actor.typed.ActorSystem;
+import com.iot.devices.DeviceRegistry;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.OptionalInt;
 
 public class IotMain {
-    public static void main(String[] args) {
+    // 参数: [--restore <注册表文件>] [--http-port <端口>]
+    public static void main(String[] args) throws IOException {
+        long startNanos = System.nanoTime();
+        Optional<DeviceRegistry> registry = Optional.empty();
+        OptionalInt httpPort = OptionalInt.empty();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--restore") && i + 1 < args.length) {
+                registry = Optional.of(DeviceRegistry.load(Paths.get(args[++i])));
+            } else if (args[i].equals("--http-port") && i + 1 < args.length) {
+                httpPort = OptionalInt.of(Integer.parseInt(args[++i]));
+            }
+        }
         // Create ActorSystem and top level supervisor
-        ActorSystem.create(IotSupervisor.create(), "iot-system");
+        ActorSystem.create(IotSupervisor.create(registry, httpPort, startNanos), "iot-system");
     }
 }
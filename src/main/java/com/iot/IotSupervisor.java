@@ -1,30 +1,117 @@
 package com.iot;
 
+import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import com.iot.devices.DeviceManager;
+import com.iot.devices.DeviceRegistry;
 
-// Void说明不需要接收任何消息
-public class IotSupervisor extends AbstractBehavior<Void> {
-    public static Behavior<Void> create() {
-        return Behaviors.setup(IotSupervisor::new);
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+
+public class IotSupervisor extends AbstractBehavior<IotSupervisor.Command> {
+
+    public interface Command {
+    }
+
+    // DeviceManager对批量恢复的回复
+    private static final class WrappedDevicesRestored implements Command {
+        final DeviceManager.DevicesRestored response;
+
+        WrappedDevicesRestored(DeviceManager.DevicesRestored response) {
+            this.response = response;
+        }
+    }
+
+    public static Behavior<Command> create() {
+        return create(Optional.empty(), System.nanoTime());
+    }
+
+    // registry不为空时, 启动后立即从注册表恢复所有Group和Device; startNanos用于计算恢复就绪耗时
+    public static Behavior<Command> create(Optional<DeviceRegistry> registry, long startNanos) {
+        return create(registry, OptionalInt.empty(), startNanos);
+    }
+
+    // httpPort不为空时启动HTTP读数接入端点
+    public static Behavior<Command> create(Optional<DeviceRegistry> registry, OptionalInt httpPort, long startNanos) {
+        return Behaviors.setup(context -> new IotSupervisor(context, registry, httpPort, startNanos));
     }
 
-    private IotSupervisor(ActorContext<Void> context) {
+    private final ActorRef<DeviceManager.Command> deviceManager;
+    private final long startNanos;
+    private final Optional<IngestionServer> ingestionServer;
+    private int pendingGroups;
+    private int restoredDevices;
+
+    private IotSupervisor(ActorContext<Command> context, Optional<DeviceRegistry> registry, OptionalInt httpPort,
+                          long startNanos) {
         super(context);
+        this.startNanos = startNanos;
         context.getLog().info("IoT Application started");
+        deviceManager = context.spawn(DeviceManager.create(), "device-manager");
+        ingestionServer = httpPort.isPresent() ? startIngestionServer(httpPort.getAsInt()) : Optional.empty();
+        registry.ifPresent(this::restore);
+    }
+
+    private Optional<IngestionServer> startIngestionServer(int port) {
+        try {
+            IngestionServer server = IngestionServer.start(getContext().getSystem(), deviceManager, port);
+            getContext().getLog().info("Accepting readings at http://{}:{}{}",
+                    server.address().getHostString(), server.address().getPort(), IngestionServer.PATH);
+            return Optional.of(server);
+        } catch (IOException e) {
+            getContext().getLog().error("Cannot start HTTP ingestion on port {}", port, e);
+            return Optional.empty();
+        }
+    }
+
+    private void restore(DeviceRegistry registry) {
+        getContext().getLog().info("Restoring {} devices in {} groups, registry loaded in {} ms",
+                registry.deviceCount, registry.groups.size(), TimeUnit.NANOSECONDS.toMillis(registry.loadNanos));
+        ActorRef<DeviceManager.DevicesRestored> replyTo =
+                getContext().messageAdapter(DeviceManager.DevicesRestored.class, WrappedDevicesRestored::new);
+        long requestId = 0;
+        for (Map.Entry<String, List<DeviceRegistry.Entry>> group : registry.groups.entrySet()) {
+            deviceManager.tell(new DeviceManager.RequestRestoreDevices(requestId++, group.getKey(), group.getValue(), replyTo));
+        }
+        pendingGroups = registry.groups.size();
+        if (pendingGroups == 0) {
+            logReady();
+        }
     }
 
-    // No need to handle any messages
     @Override
-    public Receive<Void> createReceive() {
-        return newReceiveBuilder().onSignal(PostStop.class, signal -> onPostStop()).build();
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(WrappedDevicesRestored.class, this::onDevicesRestored)
+                .onSignal(PostStop.class, signal -> onPostStop())
+                .build();
+    }
+
+    private Behavior<Command> onDevicesRestored(WrappedDevicesRestored wrapped) {
+        restoredDevices += wrapped.response.created;
+        pendingGroups--;
+        if (pendingGroups == 0) {
+            logReady();
+        }
+        return this;
+    }
+
+    private void logReady() {
+        getContext().getLog().info("Fleet ready: {} devices restored, time-to-ready {} ms",
+                restoredDevices, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
     }
 
     private IotSupervisor onPostStop() {
+        ingestionServer.ifPresent(IngestionServer::close);
         getContext().getLog().info("IoT Application stopped");
         return this;
     }
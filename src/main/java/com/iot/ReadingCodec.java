@@ -0,0 +1,295 @@
+package com.iot;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.UTFDataFormatException;
+import java.util.List;
+
+/**
+ * HTTP接入的批量读数格式, 两种格式都是边读边解码, 每解出一条读数就交给Sink, 不会先把整个请求体读进内存.
+ * <p>
+ * 二进制(DataOutputStream, 大端):
+ * <pre>
+ * magic(int) 之后重复到流结束: groupId(UTF) count(int) count * [deviceId(UTF) value(double)]
+ * </pre>
+ * JSON: 对象数组, 每个对象包含groupId/deviceId/value, 其他字段忽略
+ * <pre>
+ * [{"groupId": "g1", "deviceId": "d1", "value": 21.5}, ...]
+ * </pre>
+ */
+public final class ReadingCodec {
+
+    static final int BINARY_MAGIC = 0x494F5442;
+
+    private ReadingCodec() {
+    }
+
+    public interface Sink {
+        void reading(String groupId, String deviceId, double value);
+    }
+
+    // 请求体格式错误, 与连接本身的IO错误区分开
+    public static final class MalformedReadingsException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedReadingsException(String message) {
+            super(message);
+        }
+    }
+
+    public static void writeBinaryHeader(DataOutputStream out) throws IOException {
+        out.writeInt(BINARY_MAGIC);
+    }
+
+    public static void writeBinaryGroup(DataOutputStream out, String groupId, List<String> deviceIds, double[] values)
+            throws IOException {
+        out.writeUTF(groupId);
+        out.writeInt(deviceIds.size());
+        for (int i = 0; i < deviceIds.size(); i++) {
+            out.writeUTF(deviceIds.get(i));
+            out.writeDouble(values[i]);
+        }
+    }
+
+    // 返回解出的读数条数
+    public static int readBinary(InputStream in, Sink sink) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in);
+        DataInputStream data = new DataInputStream(pushback);
+        try {
+            if (data.readInt() != BINARY_MAGIC) {
+                throw new MalformedReadingsException("Not a binary readings batch");
+            }
+            int readings = 0;
+            int next;
+            while ((next = pushback.read()) >= 0) {
+                pushback.unread(next);
+                String groupId = data.readUTF();
+                int count = data.readInt();
+                if (count < 0) {
+                    throw new MalformedReadingsException("Negative reading count for group " + groupId);
+                }
+                for (int i = 0; i < count; i++) {
+                    String deviceId = data.readUTF();
+                    sink.reading(groupId, deviceId, data.readDouble());
+                }
+                readings += count;
+            }
+            return readings;
+        } catch (EOFException e) {
+            throw new MalformedReadingsException("Truncated binary readings batch");
+        } catch (UTFDataFormatException e) {
+            throw new MalformedReadingsException("Malformed string in binary readings batch: " + e.getMessage());
+        }
+    }
+
+    // 返回解出的读数条数
+    public static int readJson(Reader in, Sink sink) throws IOException {
+        JsonReader json = new JsonReader(in);
+        json.expect('[');
+        int readings = 0;
+        if (json.peekToken() == ']') {
+            json.next();
+        } else {
+            do {
+                readJsonReading(json, sink);
+                readings++;
+            } while (json.nextToken(',', ']') == ',');
+        }
+        if (json.peekToken() != -1) {
+            throw new MalformedReadingsException("Unexpected content after readings array");
+        }
+        return readings;
+    }
+
+    private static void readJsonReading(JsonReader json, Sink sink) throws IOException {
+        json.expect('{');
+        String groupId = null;
+        String deviceId = null;
+        double value = Double.NaN;
+        boolean hasValue = false;
+        if (json.peekToken() == '}') {
+            json.next();
+        } else {
+            do {
+                String key = json.readString();
+                json.expect(':');
+                switch (key) {
+                    case "groupId":
+                        groupId = json.readString();
+                        break;
+                    case "deviceId":
+                        deviceId = json.readString();
+                        break;
+                    case "value":
+                        value = json.readNumber();
+                        hasValue = true;
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            } while (json.nextToken(',', '}') == ',');
+        }
+        if (groupId == null || deviceId == null || !hasValue) {
+            throw new MalformedReadingsException("Each reading needs groupId, deviceId and value");
+        }
+        sink.reading(groupId, deviceId, value);
+    }
+
+    // 只支持解析读数需要的子集, 嵌套的未知字段整体跳过
+    private static final class JsonReader {
+        private final Reader in;
+        private final StringBuilder buffer = new StringBuilder();
+        // -2表示没有预读的字符
+        private int peeked = -2;
+
+        JsonReader(Reader in) {
+            this.in = in;
+        }
+
+        int next() throws IOException {
+            if (peeked != -2) {
+                int c = peeked;
+                peeked = -2;
+                return c;
+            }
+            return in.read();
+        }
+
+        int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = in.read();
+            }
+            return peeked;
+        }
+
+        // 跳过空白后预读下一个字符
+        int peekToken() throws IOException {
+            while (Character.isWhitespace(peek())) {
+                next();
+            }
+            return peek();
+        }
+
+        void expect(char expected) throws IOException {
+            int c = peekToken();
+            if (c != expected) {
+                throw unexpected(c, "'" + expected + "'");
+            }
+            next();
+        }
+
+        int nextToken(char a, char b) throws IOException {
+            int c = peekToken();
+            if (c != a && c != b) {
+                throw unexpected(c, "'" + a + "' or '" + b + "'");
+            }
+            return next();
+        }
+
+        String readString() throws IOException {
+            expect('"');
+            buffer.setLength(0);
+            while (true) {
+                int c = next();
+                if (c == '"') {
+                    return buffer.toString();
+                } else if (c == '\\') {
+                    buffer.append(readEscape());
+                } else if (c < 0) {
+                    throw new MalformedReadingsException("Unterminated string");
+                } else {
+                    buffer.append((char) c);
+                }
+            }
+        }
+
+        private char readEscape() throws IOException {
+            int c = next();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    return (char) c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw new MalformedReadingsException("Invalid unicode escape");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    return (char) code;
+                default:
+                    throw unexpected(c, "escape character");
+            }
+        }
+
+        double readNumber() throws IOException {
+            peekToken();
+            buffer.setLength(0);
+            while (isNumberChar(peek())) {
+                buffer.append((char) next());
+            }
+            try {
+                return Double.parseDouble(buffer.toString());
+            } catch (NumberFormatException e) {
+                throw new MalformedReadingsException("Invalid number '" + buffer + "'");
+            }
+        }
+
+        void skipValue() throws IOException {
+            int c = peekToken();
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                char close = c == '{' ? '}' : ']';
+                next();
+                if (peekToken() == close) {
+                    next();
+                    return;
+                }
+                do {
+                    if (close == '}') {
+                        readString();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (nextToken(',', close) == ',');
+            } else if (isNumberChar(c)) {
+                readNumber();
+            } else if (Character.isLetter(c)) {
+                // true/false/null
+                while (Character.isLetter(peek())) {
+                    next();
+                }
+            } else {
+                throw unexpected(c, "value");
+            }
+        }
+
+        private static boolean isNumberChar(int c) {
+            return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+        }
+
+        private static MalformedReadingsException unexpected(int c, String expected) {
+            return new MalformedReadingsException("Expected " + expected + " but found "
+                    + (c < 0 ? "end of input" : "'" + (char) c + "'"));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.iot.devices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单个设备的告警规则编译结果和状态, 只在所属Device内部使用.
+ * <p>
+ * 所有规则都被归一化成 "sign * 指标 > raiseAbove 时触发, <= clearAtOrBelow 时恢复",
+ * 存在基本类型数组里, evaluate不分配任何对象.
+ */
+final class AlertEvaluator {
+
+    // 状态切换时的回调, 只有这里才需要创建事件对象
+    interface Transitions {
+        void onTransition(String rule, boolean raised, double value);
+    }
+
+    private static final byte METRIC_VALUE = 0;
+    private static final byte METRIC_ABS_RATE = 1;
+
+    private final String[] names;
+    private final byte[] metrics;
+    private final double[] signs;
+    private final double[] raiseAbove;
+    private final double[] clearAtOrBelow;
+    private final boolean[] active;
+    private final boolean needsRate;
+    private boolean hasPrevious;
+    private double previousValue;
+    private long previousNanos;
+
+    // 没有规则适用于该设备时返回null
+    static AlertEvaluator compile(List<AlertRule> rules, String groupId, String deviceId) {
+        List<AlertRule> applicable = new ArrayList<>();
+        for (AlertRule rule : rules) {
+            if (rule.appliesTo(groupId, deviceId)) {
+                applicable.add(rule);
+            }
+        }
+        return applicable.isEmpty() ? null : new AlertEvaluator(applicable);
+    }
+
+    private AlertEvaluator(List<AlertRule> rules) {
+        int n = rules.size();
+        names = new String[n];
+        metrics = new byte[n];
+        signs = new double[n];
+        raiseAbove = new double[n];
+        clearAtOrBelow = new double[n];
+        active = new boolean[n];
+        boolean rate = false;
+        for (int i = 0; i < n; i++) {
+            AlertRule rule = rules.get(i);
+            names[i] = rule.name;
+            metrics[i] = rule.kind == AlertRule.Kind.RATE_OF_CHANGE ? METRIC_ABS_RATE : METRIC_VALUE;
+            signs[i] = rule.kind == AlertRule.Kind.BELOW ? -1.0 : 1.0;
+            raiseAbove[i] = signs[i] * rule.threshold;
+            clearAtOrBelow[i] = signs[i] * rule.threshold - rule.hysteresis;
+            rate |= metrics[i] == METRIC_ABS_RATE;
+        }
+        needsRate = rate;
+    }
+
+    void evaluate(double value, long nowNanos, Transitions transitions) {
+        boolean rateKnown = false;
+        double absRate = 0.0;
+        if (needsRate && hasPrevious && nowNanos > previousNanos) {
+            absRate = Math.abs(value - previousValue) * 1e9 / (nowNanos - previousNanos);
+            rateKnown = true;
+        }
+        for (int i = 0; i < names.length; i++) {
+            double metric;
+            if (metrics[i] == METRIC_VALUE) {
+                metric = signs[i] * value;
+            } else if (rateKnown) {
+                metric = absRate;
+            } else {
+                continue;
+            }
+            if (!active[i] && metric > raiseAbove[i]) {
+                active[i] = true;
+                transitions.onTransition(names[i], true, value);
+            } else if (active[i] && metric <= clearAtOrBelow[i]) {
+                active[i] = false;
+                transitions.onTransition(names[i], false, value);
+            }
+        }
+        hasPrevious = true;
+        previousValue = value;
+        previousNanos = nowNanos;
+    }
+}
@@ -0,0 +1,26 @@
+package com.iot.devices;
+
+// 告警状态切换事件, raised为true表示触发, false表示恢复
+public final class AlertEvent {
+    public final String groupId;
+    public final String deviceId;
+    public final String rule;
+    public final boolean raised;
+    // 触发切换的那次读数
+    public final double value;
+    public final long timestampMillis;
+
+    public AlertEvent(String groupId, String deviceId, String rule, boolean raised, double value, long timestampMillis) {
+        this.groupId = groupId;
+        this.deviceId = deviceId;
+        this.rule = rule;
+        this.raised = raised;
+        this.value = value;
+        this.timestampMillis = timestampMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "AlertEvent{" + groupId + "-" + deviceId + ", rule=" + rule + ", raised=" + raised + ", value=" + value + '}';
+    }
+}
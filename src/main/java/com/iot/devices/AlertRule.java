@@ -0,0 +1,67 @@
+package com.iot.devices;
+
+import java.util.Optional;
+
+/**
+ * 温度告警规则, 在Device记录温度时内联求值, 只在状态切换(触发/恢复)时发出AlertEvent.
+ * <p>
+ * 每条规则都带滞回区间: 超过阈值时触发, 回到阈值减去hysteresis以内才恢复, 避免读数在阈值附近抖动时反复告警.
+ * 默认对所有设备生效, 可以通过forGroup/forDevice限定范围.
+ */
+public final class AlertRule {
+
+    public enum Kind {
+        // 温度高于阈值
+        ABOVE,
+        // 温度低于阈值
+        BELOW,
+        // 相邻两次读数的变化速率(度/秒)的绝对值高于阈值
+        RATE_OF_CHANGE
+    }
+
+    public final String name;
+    public final Kind kind;
+    public final double threshold;
+    public final double hysteresis;
+    public final Optional<String> groupId;
+    public final Optional<String> deviceId;
+
+    private AlertRule(String name, Kind kind, double threshold, double hysteresis,
+                      Optional<String> groupId, Optional<String> deviceId) {
+        if (hysteresis < 0) {
+            throw new IllegalArgumentException("hysteresis must not be negative: " + hysteresis);
+        }
+        this.name = name;
+        this.kind = kind;
+        this.threshold = threshold;
+        this.hysteresis = hysteresis;
+        this.groupId = groupId;
+        this.deviceId = deviceId;
+    }
+
+    public static AlertRule above(String name, double threshold, double hysteresis) {
+        return new AlertRule(name, Kind.ABOVE, threshold, hysteresis, Optional.empty(), Optional.empty());
+    }
+
+    public static AlertRule below(String name, double threshold, double hysteresis) {
+        return new AlertRule(name, Kind.BELOW, threshold, hysteresis, Optional.empty(), Optional.empty());
+    }
+
+    public static AlertRule rateOfChange(String name, double degreesPerSecond, double hysteresis) {
+        return new AlertRule(name, Kind.RATE_OF_CHANGE, degreesPerSecond, hysteresis, Optional.empty(), Optional.empty());
+    }
+
+    // 只对某个Group的设备生效
+    public AlertRule forGroup(String groupId) {
+        return new AlertRule(name, kind, threshold, hysteresis, Optional.of(groupId), Optional.empty());
+    }
+
+    // 只对某个设备生效
+    public AlertRule forDevice(String groupId, String deviceId) {
+        return new AlertRule(name, kind, threshold, hysteresis, Optional.of(groupId), Optional.of(deviceId));
+    }
+
+    boolean appliesTo(String groupId, String deviceId) {
+        return this.groupId.map(groupId::equals).orElse(true) && this.deviceId.map(deviceId::equals).orElse(true);
+    }
+}
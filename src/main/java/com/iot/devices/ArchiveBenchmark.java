@@ -0,0 +1,92 @@
+package com.iot.devices;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * ReadingArchive的存储密度和扫描吞吐基准.
+ * <p>
+ * 模拟每秒上报一次(少量抖动)、以0.1度为精度缓慢漂移的温度, 按block-size封存写入一个归档文件,
+ * 然后分别做全量扫描、只扫最后1%时间范围和只扫单个设备.
+ * <p>
+ * 运行: java -cp ... com.iot.devices.ArchiveBenchmark [设备数] [每设备读数] [block-size]
+ */
+public class ArchiveBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int readingsPerDevice = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : 1_024;
+        long readings = (long) devices * readingsPerDevice;
+
+        Path directory = Files.createTempDirectory("archive-benchmark");
+        Path file = ReadingArchive.fileFor(directory, "benchmark");
+        long start = 1_600_000_000_000L;
+        long end = start + readingsPerDevice * 1_000L;
+
+        long writeStart = System.nanoTime();
+        try (ReadingArchive.Writer writer = new ReadingArchive.Writer(file)) {
+            Random random = new Random(42);
+            double[] temperatures = new double[devices];
+            long[] timestamps = new long[devices];
+            GorillaBlock.Encoder[] blocks = new GorillaBlock.Encoder[devices];
+            for (int d = 0; d < devices; d++) {
+                temperatures[d] = 180 + random.nextInt(80);
+                timestamps[d] = start + random.nextInt(1_000);
+            }
+            // 按时间交错追加, 与真实上报时各设备的块交替封存一致
+            for (int i = 0; i < readingsPerDevice; i++) {
+                for (int d = 0; d < devices; d++) {
+                    if (blocks[d] == null) {
+                        blocks[d] = new GorillaBlock.Encoder();
+                    }
+                    // 大多数间隔正好1秒, 少数有几毫秒抖动; 温度以0.1度为单位随机游走
+                    timestamps[d] += random.nextInt(10) == 0 ? 1_000 + random.nextInt(11) - 5 : 1_000;
+                    temperatures[d] += random.nextInt(5) == 0 ? random.nextInt(3) - 1 : 0;
+                    blocks[d].append(timestamps[d], temperatures[d] / 10.0);
+                    if (blocks[d].count() == blockSize) {
+                        writer.append("device-" + d, blocks[d]);
+                        blocks[d] = null;
+                    }
+                }
+            }
+            for (int d = 0; d < devices; d++) {
+                if (blocks[d] != null) {
+                    writer.append("device-" + d, blocks[d]);
+                }
+            }
+        }
+        double writeSeconds = (System.nanoTime() - writeStart) / 1e9;
+        long bytes = Files.size(file);
+        System.out.printf("devices=%d readings/device=%d block-size=%d%n", devices, readingsPerDevice, blockSize);
+        System.out.printf("write: %,d readings, %,d bytes, %.2f bytes/reading (raw 16), %,.0f readings/s%n",
+                readings, bytes, (double) bytes / readings, readings / writeSeconds);
+
+        try (ReadingArchive.Reader reader = ReadingArchive.Reader.open(file)) {
+            for (int round = 0; round < 2; round++) {
+                // 第一轮热身
+                boolean report = round == 1;
+                scan(reader, "full scan", Optional.empty(), Long.MIN_VALUE, Long.MAX_VALUE, bytes, report);
+                scan(reader, "last 1%", Optional.empty(), end - (end - start) / 100, Long.MAX_VALUE, bytes, report);
+                scan(reader, "one device", Optional.of("device-0"), Long.MIN_VALUE, Long.MAX_VALUE, bytes, report);
+            }
+        }
+        Files.delete(file);
+        Files.delete(directory);
+    }
+
+    private static void scan(ReadingArchive.Reader reader, String name, Optional<String> deviceId,
+                             long fromMillis, long toMillis, long fileBytes, boolean report) throws IOException {
+        double[] sum = new double[1];
+        long scanStart = System.nanoTime();
+        long visited = reader.scan(deviceId, fromMillis, toMillis, (id, timestamp, value) -> sum[0] += value);
+        double seconds = (System.nanoTime() - scanStart) / 1e9;
+        if (report) {
+            System.out.printf("%-10s: %,12d readings in %6.3f s, %,14.0f readings/s, %,8.1f MB/s of file (checksum %.1f)%n",
+                    name, visited, seconds, visited / seconds, fileBytes / seconds / 1e6, sum[0]);
+        }
+    }
+}
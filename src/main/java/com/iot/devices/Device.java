@@ -3,11 +3,16 @@ package com.iot.devices;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.PreRestart;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
 
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -19,21 +24,28 @@ public class Device extends AbstractBehavior<Device.Command> {
     public interface Command {
     }
 
-    // 用于让传感器通知Device更新温度
+    // 用于让传感器通知Device更新温度. requestId在同一个发送方内递增, 去重按发送方分别进行
     public static final class RecordTemperature implements Command {
         final long requestId;
         final double value;
+        // 发送方, 一般就是replyTo; Group转发批量记录时为原批次的发送方
+        final ActorRef<?> sender;
         final ActorRef<TemperatureRecorded> replyTo;
 
         public RecordTemperature(long requestId, double value, ActorRef<TemperatureRecorded> replyTo) {
+            this(requestId, value, replyTo, replyTo);
+        }
+
+        RecordTemperature(long requestId, double value, ActorRef<?> sender, ActorRef<TemperatureRecorded> replyTo) {
             this.requestId = requestId;
             this.value = value;
+            this.sender = sender;
             this.replyTo = replyTo;
         }
     }
 
     public static final class TemperatureRecorded {
-        final long requestId;
+        public final long requestId;
 
         public TemperatureRecorded(long requestId) {
             this.requestId = requestId;
@@ -53,35 +65,199 @@ public class Device extends AbstractBehavior<Device.Command> {
         }
     }
 
+    // 查询Device的运行统计
+    public static final class ReadDeviceStats implements Command {
+        final long requestId;
+        final ActorRef<RespondDeviceStats> replyTo;
+
+        public ReadDeviceStats(long requestId, ActorRef<RespondDeviceStats> replyTo) {
+            this.requestId = requestId;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class RespondDeviceStats {
+        public final long requestId;
+        // 命中去重窗口而未重复应用的RecordTemperature数量
+        public final long dedupeHits;
+        // 同一发送方乱序迟到的读数, 只归档, 不覆盖更新的读数
+        public final long lateReadings;
+        // 处理消息失败后被监督重启的次数
+        public final int restarts;
+
+        public RespondDeviceStats(long requestId, long dedupeHits, long lateReadings, int restarts) {
+            this.requestId = requestId;
+            this.dedupeHits = dedupeHits;
+            this.lateReadings = lateReadings;
+            this.restarts = restarts;
+        }
+    }
+
     enum Passivate implements Command {
         INSTANCE
     }
 
+    // 测试用: 模拟处理消息时抛出异常
+    enum Crash implements Command {
+        INSTANCE
+    }
+
+    // 正在攒的块从第一条读数起超过max-block-age, 没有新读数也要封存
+    private enum SealArchiveBlock implements Command {
+        INSTANCE
+    }
+
+    // 在supervise之外创建, 重启后的新实例继续使用, 保留最后的读数和去重窗口
+    private static final class RestartState {
+        // 记录读数时不装箱, 只在回复ReadTemperature时创建Optional
+        boolean hasReading;
+        double lastReading;
+        // 各发送方的去重窗口, 按最近使用排序, 只保留最近的DEDUPE_SENDERS个
+        final Map<ActorRef<?>, DedupeWindow> dedupeWindows = new LinkedHashMap<ActorRef<?>, DedupeWindow>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ActorRef<?>, DedupeWindow> eldest) {
+                return size() > DEDUPE_SENDERS;
+            }
+        };
+        long dedupeHits;
+        long lateReadings;
+        // 最近一次通知Group的读数及其所在的TemperatureSketch桶
+        boolean hasReported;
+        double reportedReading;
+        int reportedKey;
+        int restarts;
+
+        RestartState(Optional<Double> lastReading) {
+            this.hasReading = lastReading.isPresent();
+            this.lastReading = lastReading.orElse(0.0);
+        }
+    }
+
+    // 一个发送方最近应用过的requestId
+    private static final class DedupeWindow {
+        // 已应用过的最大requestId
+        long highestRequestId;
+        // 第i位表示 highestRequestId - i 已应用过, 为0表示还没有应用过任何记录
+        long appliedRequestIds;
+    }
+
+    // 一条RecordTemperature相对于发送方去重窗口的位置
+    private enum Arrival {
+        // 比该发送方之前的读数都新, 成为最新读数
+        LATEST,
+        // 窗口内还没应用过的旧requestId, 已经有更新的读数
+        LATE,
+        // 已经应用过的重试
+        DUPLICATE
+    }
+
     // 响应体, 包含温度信息, 可为空(Optional)
     public static final class RespondTemperature {
-        final long requestId;
+        public final long requestId;
+        public final String deviceId;
         // java1.8引入的类型
-        final Optional<Double> value;
+        public final Optional<Double> value;
 
-        public RespondTemperature(long requestId, Optional<Double> value) {
+        public RespondTemperature(long requestId, String deviceId, Optional<Double> value) {
             this.requestId = requestId;
+            this.deviceId = deviceId;
             this.value = value;
         }
     }
 
     private final String groupId;
     private final String deviceId;
-    private Optional<Double> lastTemperatureReading = Optional.empty();
+    private final RestartState state;
+
+    // 去重窗口大小, 正好用一个long做bitset
+    static final int DEDUPE_WINDOW = 64;
+    // 每个Device保留去重窗口的发送方数, 更早的发送方再次出现时重新开窗
+    static final int DEDUPE_SENDERS = 16;
+
+    // 没有适用的告警规则时为null
+    private final AlertEvaluator alertEvaluator;
+    private final Optional<ActorRef<AlertEvent>> alertSubscriber;
+    // 预先创建好的回调, 记录温度时不必每次分配
+    private final AlertEvaluator.Transitions alertTransitions = this::onAlertTransition;
+
+    // 未开启归档时为空
+    private final Optional<ReadingArchive.Writer> archive;
+    private final int archiveBlockSize;
+    private final long archiveMaxBlockAgeMillis;
+    // 正在攒的块, 还没有读数时为null
+    private GorillaBlock.Encoder archiveBlock;
+    // 未开启归档时为null
+    private final TimerScheduler<Command> timers;
+
+    // 读数换了TemperatureSketch的桶时通知所属的Group, 单独创建的Device为空
+    private final Optional<ActorRef<DeviceGroup.Command>> group;
+    // 开启快照时Group由推送的读数发布快照, 读数每次变化都要通知
+    private final boolean reportEveryChange;
+    private final Optional<RestartCounters> restartCounters;
 
     public Device(ActorContext<Command> context, String groupId, String deviceId) {
+        this(context, groupId, deviceId, Optional.empty());
+    }
+
+    public Device(ActorContext<Command> context, String groupId, String deviceId, Optional<Double> lastReading) {
+        this(context, null, groupId, deviceId, new RestartState(lastReading), null, Optional.empty(), Optional.empty(), 0, 0L,
+                Optional.empty(), false, Optional.empty());
+    }
+
+    private Device(ActorContext<Command> context, TimerScheduler<Command> timers, String groupId, String deviceId,
+                   RestartState state,
+                   AlertEvaluator alertEvaluator, Optional<ActorRef<AlertEvent>> alertSubscriber,
+                   Optional<ReadingArchive.Writer> archive, int archiveBlockSize, long archiveMaxBlockAgeMillis,
+                   Optional<ActorRef<DeviceGroup.Command>> group, boolean reportEveryChange,
+                   Optional<RestartCounters> restartCounters) {
         super(context);
         this.groupId = groupId;
         this.deviceId = deviceId;
+        this.state = state;
+        this.alertEvaluator = alertEvaluator;
+        this.alertSubscriber = alertSubscriber;
+        this.archive = archive;
+        this.archiveBlockSize = archiveBlockSize;
+        this.archiveMaxBlockAgeMillis = archiveMaxBlockAgeMillis;
+        this.timers = timers;
+        this.group = group;
+        this.reportEveryChange = reportEveryChange;
+        this.restartCounters = restartCounters;
         context.getLog().info("Device actor {}-{} started", groupId, deviceId);
+        if (group.isPresent() && state.hasReading) {
+            reportReading(state.lastReading);
+        }
     }
 
     public static Behavior<Command> create(String groupId, String deviceId) {
-        return Behaviors.setup(context -> new Device(context, groupId, deviceId));
+        return create(groupId, deviceId, Optional.empty());
+    }
+
+    // 从注册表恢复时带上最后一次读数
+    public static Behavior<Command> create(String groupId, String deviceId, Optional<Double> lastReading) {
+        return Behaviors.setup(context -> new Device(context, groupId, deviceId, lastReading));
+    }
+
+    public static Behavior<Command> create(String groupId, String deviceId, Optional<Double> lastReading,
+                                           DeviceSettings settings) {
+        return create(groupId, deviceId, lastReading, settings, Optional.empty(), Optional.empty());
+    }
+
+    // archive由所属的DeviceGroup打开并在所有Device停止后关闭, group用于维护Group的温度分布和读数快照
+    static Behavior<Command> create(String groupId, String deviceId, Optional<Double> lastReading,
+                                    DeviceSettings settings, Optional<ReadingArchive.Writer> archive,
+                                    Optional<ActorRef<DeviceGroup.Command>> group) {
+        // 外层setup每个Device只执行一次, 重启只重新执行supervise里面的setup
+        return Behaviors.setup(outer -> {
+            RestartState state = new RestartState(lastReading);
+            AlertEvaluator alertEvaluator = settings.alertSubscriber.isPresent()
+                    ? AlertEvaluator.compile(settings.alertRules, groupId, deviceId)
+                    : null;
+            return settings.supervise(Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                    new Device(context, timers, groupId, deviceId, state, alertEvaluator, settings.alertSubscriber,
+                            archive, settings.archiveBlockSize, settings.archiveMaxBlockAge.toMillis(),
+                            group, settings.snapshotDirectory.isPresent(), settings.restartCounters))));
+        });
     }
 
     @Override
@@ -89,24 +265,157 @@ public class Device extends AbstractBehavior<Device.Command> {
         return newReceiveBuilder()
                 .onMessage(ReadTemperature.class, this::onReadTemperature)
                 .onMessage(RecordTemperature.class, this::onRecordTemperature)
+                .onMessage(ReadDeviceStats.class, this::onReadDeviceStats)
+                .onMessage(SealArchiveBlock.class, m -> onSealArchiveBlock())
                 .onMessage(Passivate.class, m -> Behaviors.stopped())  // 测试用例当中发出该消息, 可以关闭Device
+                .onMessage(Crash.class, m -> onCrash())
+                .onSignal(PreRestart.class, signal -> onPreRestart())
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
     private Behavior<Command> onRecordTemperature(RecordTemperature r) {
-        getContext().getLog().info("Recorded temperature reading {} with {}", r.value, r.requestId);
-        lastTemperatureReading  = Optional.of(r.value);
+        switch (arrival(r.sender, r.requestId)) {
+            case LATEST:
+                state.hasReading = true;
+                state.lastReading = r.value;
+                if (alertEvaluator != null) {
+                    alertEvaluator.evaluate(r.value, System.nanoTime(), alertTransitions);
+                }
+                if (archive.isPresent()) {
+                    archiveReading(r.value);
+                }
+                if (group.isPresent()) {
+                    reportReading(r.value);
+                }
+                break;
+            case LATE:
+                // 迟到的读数仍然是一条有效读数, 只写入归档, 不覆盖同一发送方更新的读数
+                state.lateReadings++;
+                if (archive.isPresent()) {
+                    archiveReading(r.value);
+                }
+                break;
+            default:
+                // 重试的请求直接确认, 不再重复应用
+                state.dedupeHits++;
+                getContext().getLog().debug("Ignoring duplicate temperature reading {} with {}", r.value, r.requestId);
+        }
         r.replyTo.tell(new TemperatureRecorded(r.requestId));
         return this;
     }
 
+    private Arrival arrival(ActorRef<?> sender, long requestId) {
+        DedupeWindow window = state.dedupeWindows.get(sender);
+        if (window == null) {
+            window = new DedupeWindow();
+            state.dedupeWindows.put(sender, window);
+        }
+        return markApplied(window, requestId);
+    }
+
+    /**
+     * 在发送方的滑动窗口中登记requestId.
+     * 比窗口还旧的requestId无法判断是否重复, 按迟到的读数处理: 写入归档, 但不覆盖更新的读数.
+     * 重启的发送方是新的ActorRef, 本来就有自己的窗口.
+     */
+    private static Arrival markApplied(DedupeWindow w, long requestId) {
+        if (w.appliedRequestIds == 0L || requestId > w.highestRequestId) {
+            long shift = requestId - w.highestRequestId;
+            if (w.appliedRequestIds == 0L || shift >= DEDUPE_WINDOW) {
+                w.appliedRequestIds = 1L;
+            } else {
+                w.appliedRequestIds = (w.appliedRequestIds << shift) | 1L;
+            }
+            w.highestRequestId = requestId;
+            return Arrival.LATEST;
+        }
+        long offset = w.highestRequestId - requestId;
+        if (offset >= DEDUPE_WINDOW) {
+            return Arrival.LATE;
+        }
+        long bit = 1L << offset;
+        if ((w.appliedRequestIds & bit) != 0L) {
+            return Arrival.DUPLICATE;
+        }
+        w.appliedRequestIds |= bit;
+        return Arrival.LATE;
+    }
+
+    // 温度缓慢变化时大多数读数仍落在原来的桶里, 不开启快照时不必通知Group
+    private void reportReading(double value) {
+        int key = TemperatureSketch.keyOf(value);
+        boolean changed = !state.hasReported || key != state.reportedKey
+                || (reportEveryChange && Double.doubleToLongBits(value) != Double.doubleToLongBits(state.reportedReading));
+        if (changed) {
+            state.hasReported = true;
+            state.reportedReading = value;
+            state.reportedKey = key;
+            group.get().tell(new DeviceGroup.ReadingChanged(deviceId, getContext().getSelf(), value, key));
+        }
+    }
+
+    // 块攒满或过旧时封存, 压缩已经在追加时完成, 写盘在归档共享的线程池上进行.
+    // 块的第一条读数启动定时器, 之后没有读数的设备也会在max-block-age后封存
+    private void archiveReading(double value) {
+        long now = System.currentTimeMillis();
+        if (archiveBlock == null) {
+            archiveBlock = new GorillaBlock.Encoder();
+            timers.startSingleTimer(SealArchiveBlock.INSTANCE, Duration.ofMillis(archiveMaxBlockAgeMillis));
+        }
+        archiveBlock.append(now, value);
+        // 邮箱积压时定时器消息可能排在读数后面, 追加时也检查一次
+        if (archiveBlock.count() >= archiveBlockSize || now - archiveBlock.firstTimestamp() >= archiveMaxBlockAgeMillis) {
+            sealArchiveBlock();
+        }
+    }
+
+    private Behavior<Command> onSealArchiveBlock() {
+        sealArchiveBlock();
+        return this;
+    }
+
+    // 取消定时器后, 已经在邮箱里的SealArchiveBlock也不会再收到
+    private void sealArchiveBlock() {
+        if (archiveBlock != null) {
+            timers.cancel(SealArchiveBlock.INSTANCE);
+            archive.get().append(deviceId, archiveBlock);
+            archiveBlock = null;
+        }
+    }
+
+    private void onAlertTransition(String rule, boolean raised, double value) {
+        getContext().getLog().info("Alert {} {} for device {}-{} at {}", rule, raised ? "raised" : "cleared", groupId, deviceId, value);
+        alertSubscriber.ifPresent(subscriber ->
+                subscriber.tell(new AlertEvent(groupId, deviceId, rule, raised, value, System.currentTimeMillis())));
+    }
+
+    private Behavior<Command> onReadDeviceStats(ReadDeviceStats r) {
+        r.replyTo.tell(new RespondDeviceStats(r.requestId, state.dedupeHits, state.lateReadings, state.restarts));
+        return this;
+    }
+
     private Behavior<Command> onReadTemperature(ReadTemperature r) {
-        r.replyTo.tell(new RespondTemperature(r.requestId, lastTemperatureReading));
+        r.replyTo.tell(new RespondTemperature(r.requestId, deviceId,
+                state.hasReading ? Optional.of(state.lastReading) : Optional.empty()));
+        return this;
+    }
+
+    private Behavior<Command> onCrash() {
+        throw new IllegalStateException("Simulated failure of device " + groupId + "-" + deviceId);
+    }
+
+    // 重启不会触发PostStop, 先封存正在攒的块
+    private Behavior<Command> onPreRestart() {
+        sealArchiveBlock();
+        state.restarts++;
+        restartCounters.ifPresent(RestartCounters::deviceRestarted);
+        getContext().getLog().warn("Device actor {}-{} restarting, {} restarts so far", groupId, deviceId, state.restarts);
         return this;
     }
 
     private Behavior<Command> onPostStop() {
+        sealArchiveBlock();
         getContext().getLog().info("Device actor {}-{} stopped", groupId, deviceId);
         return Behaviors.stopped();
     }
@@ -0,0 +1,44 @@
+package com.iot.devices;
+
+import akka.actor.typed.ActorRef;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * (groupId, deviceId) -> Device的并发目录, 供非actor代码绕过DeviceManager和DeviceGroup直接给Device发消息.
+ * <p>
+ * 只由各DeviceGroup在创建和终止Device时更新, 查询不加锁也不发消息. 查到的引用可能恰好已经停止,
+ * 此时消息会进入dead letters, 调用方应在超时后回退到经DeviceManager的RequestTrackDevice.
+ */
+public final class DeviceDirectory {
+
+    // 按Group分两层, 查询时不必拼接key
+    private final Map<String, Map<String, ActorRef<Device.Command>>> groups = new ConcurrentHashMap<>();
+
+    public Optional<ActorRef<Device.Command>> lookup(String groupId, String deviceId) {
+        Map<String, ActorRef<Device.Command>> devices = groups.get(groupId);
+        return devices == null ? Optional.empty() : Optional.ofNullable(devices.get(deviceId));
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, ActorRef<Device.Command>> devices : groups.values()) {
+            size += devices.size();
+        }
+        return size;
+    }
+
+    void register(String groupId, String deviceId, ActorRef<Device.Command> device) {
+        groups.computeIfAbsent(groupId, g -> new ConcurrentHashMap<>()).put(deviceId, device);
+    }
+
+    // 只有仍指向同一个actor时才删除, 不会误删之后同名的新Device
+    void unregister(String groupId, String deviceId, ActorRef<Device.Command> device) {
+        Map<String, ActorRef<Device.Command>> devices = groups.get(groupId);
+        if (devices != null) {
+            devices.remove(deviceId, device);
+        }
+    }
+}
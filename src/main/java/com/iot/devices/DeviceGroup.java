@@ -3,13 +3,24 @@ package com.iot.devices;
 import akka.actor.typed.ActorRef;
 import akka.actor.typed.Behavior;
 import akka.actor.typed.PostStop;
+import akka.actor.typed.PreRestart;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
 
@@ -30,52 +41,595 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
     }
 
 
+    // 测试用: 模拟处理消息时抛出异常
+    enum Crash implements Command {
+        INSTANCE
+    }
+
+    // 在supervise之外创建. 重启时子actor不会停止, 新实例沿用已有的设备、分区、温度分布和打开的文件,
+    // 只丢弃进行中的收集、分区汇总和缓存, 等待它们的请求由调用方超时处理
+    private static final class RestartState {
+        // 收集各部分和分区汇总的编号在重启后继续递增, 重启前发出的请求的迟到回复因编号对不上而被忽略
+        long lastCollectionId;
+        long nextFanInId;
+        final Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+        final TemperatureSketch sketch = new TemperatureSketch();
+        final Map<String, Integer> sketchKeys = new HashMap<>();
+        // 开启快照时由设备推送的最新读数维护, 包括各分区的设备; 分区自己不保留
+        final Map<String, DeviceManager.TemperatureReading> snapshotReadings = new HashMap<>();
+        List<ActorRef<Command>> partitions;
+        // 第一次启动时打开
+        Optional<ReadingSnapshot.Writer> snapshotWriter;
+        Optional<ReadingArchive.Writer> archiveWriter;
+        int restarts;
+    }
+
+    // 经DeviceManager准入后转发的请求, 处理时把backlog减一; 退避期间暂存溢出被丢弃的由GroupBacklog超时清零
+    static final class Admitted implements Command {
+        final Command command;
+
+        Admitted(Command command) {
+            this.command = command;
+        }
+    }
+
+    // 定期发布读数快照的定时消息
+    private enum PublishSnapshot implements Command {
+        INSTANCE
+    }
+
+    // 分区重启或退避期间暂存溢出都会丢掉请求, 收集和分区汇总超过queryTimeout就用已收到的部分结束
+    private static final class CollectionTimedOut implements Command {
+        final long firstPartId;
+
+        CollectionTimedOut(long firstPartId) {
+            this.firstPartId = firstPartId;
+        }
+    }
+
+    private static final class FanInTimedOut implements Command {
+        final long fanInId;
+
+        FanInTimedOut(long fanInId) {
+            this.fanInId = fanInId;
+        }
+    }
+
+    // 分区对批量记录/恢复/设备列表的回复, requestId为FanIn的编号
+    private static class PartitionReplied implements Command {
+        final long fanInId;
+        final int count;
+        // 只有设备列表的回复不为空
+        final Set<String> deviceIds;
+        // 只有温度分布的回复不为空
+        final TemperatureSketch sketch;
+
+        PartitionReplied(long fanInId, int count, Set<String> deviceIds) {
+            this(fanInId, count, deviceIds, null);
+        }
+
+        PartitionReplied(long fanInId, TemperatureSketch sketch) {
+            this(fanInId, 0, null, sketch);
+        }
+
+        private PartitionReplied(long fanInId, int count, Set<String> deviceIds, TemperatureSketch sketch) {
+            this.fanInId = fanInId;
+            this.count = count;
+            this.deviceIds = deviceIds;
+            this.sketch = sketch;
+        }
+    }
+
+    // Device的最新读数换了TemperatureSketch的桶, 或开启快照时读数有变化
+    static final class ReadingChanged implements Command {
+        final String deviceId;
+        final ActorRef<Device.Command> device;
+        final double value;
+        final int key;
+
+        ReadingChanged(String deviceId, ActorRef<Device.Command> device, double value, int key) {
+            this.deviceId = deviceId;
+            this.device = device;
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    // 分区把设备快照读数的变化转给父Group, reading为null表示设备已停止
+    private static final class PartitionReadingChanged implements Command {
+        final String deviceId;
+        final DeviceManager.TemperatureReading reading;
+
+        PartitionReadingChanged(String deviceId, DeviceManager.TemperatureReading reading) {
+            this.deviceId = deviceId;
+            this.reading = reading;
+        }
+    }
+
+    // 一次温度收集的结果(本地或某个分区的), 用于回复所有等待中的请求和发布快照
+    private static class WrappedCollectedTemperatures implements Command {
+        final DeviceManager.RespondAllTemperatures response;
+
+        WrappedCollectedTemperatures(DeviceManager.RespondAllTemperatures response) {
+            this.response = response;
+        }
+    }
+
+
     private final String groupId;
+    private final DeviceSettings settings;
+    private final TimerScheduler<Command> timers;
+    // 与DeviceManager共享, 记录已准入但还没处理的请求数
+    private final GroupBacklog backlog;
     // 该Group Actor所管理的DeviceId:Actor的Mapping
-    private final Map<String, ActorRef<Device.Command>> deviceIdToActor = new HashMap<>();
+    private final Map<String, ActorRef<Device.Command>> deviceIdToActor;
+    // 未开启快照时为空
+    private final Optional<ReadingSnapshot.Writer> snapshotWriter;
+    // 未开启归档时为空, 由所有Device共用
+    private final Optional<ReadingArchive.Writer> archiveWriter;
+    // 分区才有, 分区本身不会再拆分, 也不发布快照, 读数的变化转给父Group
+    private final Optional<ActorRef<Command>> parent;
+    // 拆分前为null; 拆分后本地已有的设备仍由本地处理, 新设备按deviceId哈希交给分区
+    private List<ActorRef<Command>> partitions;
+    // 按秒统计经DeviceManager转发的消息数, 用于按速率拆分
+    private long rateWindowStartNanos;
+    private int messagesInWindow;
+    // 等待各分区回复的请求
+    private final Map<Long, FanIn> fanIns = new HashMap<>();
+    // 同一时刻最多只有一次温度收集, 期间到达的请求都等待它的结果
+    private boolean collectionInFlight;
+    // 进行中的收集每个部分有自己的requestId: 本地为firstPartId, 第i个分区为firstPartId + 1 + i
+    private long firstPartId;
+    // 本次收集还在等待的部分(下标同上)及其个数, 以及已合并的结果
+    private boolean[] pendingParts;
+    private int pendingCollectionParts;
+    // 本次收集询问的本地设备, 超时时没有回复的记为超时
+    private Set<String> localCollectionDevices;
+    // 每个分区最近一次回复的设备, 分区没有回复时用来标记超时的设备
+    private List<Set<String>> partitionDevices;
+    private Map<String, DeviceManager.TemperatureReading> collectedTemperatures;
+    private final List<DeviceManager.RequestAllTemperatures> waitingForTemperatures = new ArrayList<>();
+    // 上一次收集的结果, 只在开启缓存时保留
+    private Map<String, DeviceManager.TemperatureReading> cachedTemperatures;
+    private long cachedAtNanos;
+    // 本地设备最新读数的分布, 及每个设备当前计入的桶; 分区的设备由分区维护
+    private final TemperatureSketch sketch;
+    private final Map<String, Integer> sketchKeys;
+    private final Map<String, DeviceManager.TemperatureReading> snapshotReadings;
+    // 重启后仍然保留的状态
+    private final RestartState state;
+
+    // 转发给多个分区的请求, 汇总各分区的回复后由onComplete回复原请求
+    private static final class FanIn {
+        final long id;
+        int remaining;
+        int count;
+        final Set<String> deviceIds = new HashSet<>();
+        TemperatureSketch sketch;
+        final Consumer<FanIn> onComplete;
+        // 同时作为定时器的key, 完成时取消
+        final FanInTimedOut timeout;
 
+        FanIn(long id, int remaining, int count, Consumer<FanIn> onComplete) {
+            this.id = id;
+            this.remaining = remaining;
+            this.count = count;
+            this.onComplete = onComplete;
+            this.timeout = new FanInTimedOut(id);
+        }
+    }
+
+    // 使用ActorSystem配置中的iot.devices
     public static Behavior<Command> create(String groupId) {
-        return Behaviors.setup(context -> new DeviceGroup(context, groupId));
+        return Behaviors.setup(context -> create(groupId, DeviceSettings.create(context.getSystem().settings().config())));
+    }
+
+    public static Behavior<Command> create(String groupId, DeviceSettings settings) {
+        return create(groupId, settings, new GroupBacklog(settings.admissionBacklogTimeout));
     }
 
-    public DeviceGroup(ActorContext<Command> context, String groupId) {
+    static Behavior<Command> create(String groupId, DeviceSettings settings, GroupBacklog backlog) {
+        return create(groupId, settings, backlog, Optional.empty(), Optional.empty());
+    }
+
+    // 分区与父Group共用归档Writer, 由父Group关闭
+    private static Behavior<Command> createPartition(String groupId, DeviceSettings settings, ActorRef<Command> parent,
+                                                     Optional<ReadingArchive.Writer> archiveWriter) {
+        return create(groupId, settings, new GroupBacklog(settings.admissionBacklogTimeout), Optional.of(parent), archiveWriter);
+    }
+
+    // 外层setup每个Group只执行一次, 重启只重新执行supervise里面的setup
+    private static Behavior<Command> create(String groupId, DeviceSettings settings, GroupBacklog backlog,
+                                            Optional<ActorRef<Command>> parent,
+                                            Optional<ReadingArchive.Writer> parentArchiveWriter) {
+        return Behaviors.setup(outer -> {
+            RestartState state = new RestartState();
+            return settings.supervise(Behaviors.setup(context ->
+                    Behaviors.withTimers(timers -> new DeviceGroup(context, timers, groupId, settings, backlog,
+                            parent, parentArchiveWriter, state))));
+        });
+    }
+
+    private DeviceGroup(ActorContext<Command> context, TimerScheduler<Command> timers, String groupId,
+                        DeviceSettings settings, GroupBacklog backlog,
+                        Optional<ActorRef<Command>> parent, Optional<ReadingArchive.Writer> parentArchiveWriter,
+                        RestartState state) {
         super(context);
         this.groupId = groupId;
+        this.settings = settings;
+        this.timers = timers;
+        this.backlog = backlog;
+        this.parent = parent;
+        this.state = state;
+        if (state.snapshotWriter == null) {
+            state.snapshotWriter = parent.isPresent() ? Optional.empty() : openSnapshotWriter();
+            state.archiveWriter = parent.isPresent() ? parentArchiveWriter : openArchiveWriter();
+        }
+        this.snapshotWriter = state.snapshotWriter;
+        this.archiveWriter = state.archiveWriter;
+        this.deviceIdToActor = state.deviceIdToActor;
+        this.sketch = state.sketch;
+        this.sketchKeys = state.sketchKeys;
+        this.snapshotReadings = state.snapshotReadings;
+        this.partitions = state.partitions;
+        if (snapshotWriter.isPresent()) {
+            timers.startTimerWithFixedDelay(PublishSnapshot.INSTANCE, settings.snapshotInterval);
+        }
         context.getLog().info("DeviceGroup {} started", groupId);
     }
 
+    private Optional<ReadingSnapshot.Writer> openSnapshotWriter() {
+        if (!settings.snapshotDirectory.isPresent()) {
+            return Optional.empty();
+        }
+        Path file = ReadingSnapshot.fileFor(settings.snapshotDirectory.get(), groupId);
+        try {
+            return Optional.of(new ReadingSnapshot.Writer(file, settings.snapshotInitialCapacity));
+        } catch (IOException e) {
+            getContext().getLog().warn("Cannot open reading snapshot {}, snapshots disabled for group {}", file, groupId, e);
+            return Optional.empty();
+        }
+    }
+
+    private Optional<ReadingArchive.Writer> openArchiveWriter() {
+        if (!settings.archiveDirectory.isPresent()) {
+            return Optional.empty();
+        }
+        Path file = ReadingArchive.fileFor(settings.archiveDirectory.get(), groupId);
+        try {
+            return Optional.of(new ReadingArchive.Writer(file));
+        } catch (IOException e) {
+            getContext().getLog().warn("Cannot open reading archive {}, archiving disabled for group {}", file, groupId, e);
+            return Optional.empty();
+        }
+    }
+
     @Override
     public Receive<Command> createReceive() {
+        // 分区用watch而不是watchWith: 分区自己会被重启, 只有意外停止时Group才因DeathPactException一起失败
         return newReceiveBuilder()
+                .onMessage(Admitted.class, this::onAdmitted)
                 .onMessage(DeviceManager.RequestTrackDevice.class, this::onTrackDevice)
+                .onMessage(DeviceManager.RequestRestoreDevices.class, this::onRestoreDevices)
+                .onMessage(DeviceManager.RecordGroupTemperatures.class, r -> r.groupId.equals(groupId), this::onRecordGroupTemperatures)
                 .onMessage(DeviceTerminated.class, this::onTerminated)
                 .onMessage(DeviceManager.RequestDeviceList.class, r -> r.groupId.equals(groupId), this::onDeviceList)
+                .onMessage(DeviceManager.RequestAllTemperatures.class, r -> r.groupId.equals(groupId), this::onAllTemperatures)
+                .onMessage(PublishSnapshot.class, m -> onPublishSnapshot())
+                .onMessage(WrappedCollectedTemperatures.class, this::onCollectedTemperatures)
+                .onMessage(CollectionTimedOut.class, this::onCollectionTimedOut)
+                .onMessage(FanInTimedOut.class, this::onFanInTimedOut)
+                .onMessage(DeviceManager.RequestTemperatureSketch.class, r -> r.groupId.equals(groupId), this::onTemperatureSketch)
+                .onMessage(ReadingChanged.class, this::onReadingChanged)
+                .onMessage(PartitionReadingChanged.class, this::onPartitionReadingChanged)
+                .onMessage(PartitionReplied.class, this::onPartitionReplied)
+                .onMessage(Crash.class, m -> onCrash())
+                .onSignal(PreRestart.class, signal -> onPreRestart())
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
+    private Behavior<Command> onAdmitted(Admitted admitted) throws Exception {
+        backlog.processed(System.nanoTime());
+        if (settings.partitionMaxMessagesPerSecond > 0) {
+            countMessage();
+        }
+        return receive(getContext(), admitted.command);
+    }
+
+    private void countMessage() {
+        long now = System.nanoTime();
+        if (now - rateWindowStartNanos >= 1_000_000_000L) {
+            rateWindowStartNanos = now;
+            messagesInWindow = 0;
+        }
+        if (++messagesInWindow >= settings.partitionMaxMessagesPerSecond) {
+            split("message rate");
+        }
+    }
+
+    // 只拆分一次, 之后本地不再创建设备, 已有设备不迁移
+    private void split(String reason) {
+        if (parent.isPresent() || partitions != null || settings.partitionCount < 2) {
+            return;
+        }
+        getContext().getLog().info("Splitting group {} into {} partitions by {}, {} existing devices stay in the group",
+                groupId, settings.partitionCount, reason, deviceIdToActor.size());
+        partitions = new ArrayList<>(settings.partitionCount);
+        for (int i = 0; i < settings.partitionCount; i++) {
+            ActorRef<Command> partition =
+                    getContext().spawn(createPartition(groupId, settings, getContext().getSelf(), archiveWriter), "partition-" + i);
+            getContext().watch(partition);
+            partitions.add(partition);
+        }
+        state.partitions = partitions;
+    }
+
+    // 本地已有的设备返回null, 否则在拆分后返回负责该deviceId的分区
+    private ActorRef<Command> partitionFor(String deviceId) {
+        if (deviceIdToActor.containsKey(deviceId)) {
+            return null;
+        }
+        if (settings.partitionMaxDevices > 0 && deviceIdToActor.size() >= settings.partitionMaxDevices) {
+            split("device count");
+        }
+        return partitions == null ? null : partitions.get(Math.floorMod(deviceId.hashCode(), partitions.size()));
+    }
+
+    private FanIn startFanIn(int partitionsReplying, int localCount, Consumer<FanIn> onComplete) {
+        FanIn fanIn = new FanIn(state.nextFanInId++, partitionsReplying, localCount, onComplete);
+        fanIns.put(fanIn.id, fanIn);
+        timers.startSingleTimer(fanIn.timeout, settings.queryTimeout);
+        return fanIn;
+    }
+
+    // 没有回复的分区不计入结果
+    private Behavior<Command> onFanInTimedOut(FanInTimedOut m) {
+        FanIn fanIn = fanIns.remove(m.fanInId);
+        if (fanIn != null) {
+            getContext().getLog().warn("{} partitions of group {} did not reply within {}",
+                    fanIn.remaining, groupId, settings.queryTimeout);
+            fanIn.onComplete.accept(fanIn);
+        }
+        return this;
+    }
+
+    private Behavior<Command> onPartitionReplied(PartitionReplied r) {
+        FanIn fanIn = fanIns.get(r.fanInId);
+        if (fanIn != null) {
+            fanIn.count += r.count;
+            if (r.deviceIds != null) {
+                fanIn.deviceIds.addAll(r.deviceIds);
+            }
+            if (r.sketch != null) {
+                fanIn.sketch.merge(r.sketch);
+            }
+            if (--fanIn.remaining == 0) {
+                fanIns.remove(r.fanInId);
+                timers.cancel(fanIn.timeout);
+                fanIn.onComplete.accept(fanIn);
+            }
+        }
+        return this;
+    }
+
     private Behavior<Command> onDeviceList(DeviceManager.RequestDeviceList r) {
-        r.replyTo.tell(new DeviceManager.ReplyDeviceList(r.requestId, deviceIdToActor.keySet()));
+        // 复制一份, 回复可能在其他线程上读取
+        Set<String> localIds = Collections.unmodifiableSet(new HashSet<>(deviceIdToActor.keySet()));
+        if (partitions == null) {
+            r.replyTo.tell(new DeviceManager.ReplyDeviceList(r.requestId, localIds));
+            return this;
+        }
+        FanIn fanIn = startFanIn(partitions.size(), 0, f ->
+                r.replyTo.tell(new DeviceManager.ReplyDeviceList(r.requestId, Collections.unmodifiableSet(f.deviceIds))));
+        fanIn.deviceIds.addAll(localIds);
+        ActorRef<DeviceManager.ReplyDeviceList> replyTo = getContext().messageAdapter(DeviceManager.ReplyDeviceList.class,
+                reply -> new PartitionReplied(reply.requestId, reply.ids.size(), reply.ids));
+        for (ActorRef<Command> partition : partitions) {
+            partition.tell(new DeviceManager.RequestDeviceList(fanIn.id, groupId, replyTo));
+        }
+        return this;
+    }
+
+    private Behavior<Command> onTemperatureSketch(DeviceManager.RequestTemperatureSketch r) {
+        if (partitions == null) {
+            r.replyTo.tell(new DeviceManager.RespondTemperatureSketch(r.requestId, sketch.copy()));
+            return this;
+        }
+        FanIn fanIn = startFanIn(partitions.size(), 0, f ->
+                r.replyTo.tell(new DeviceManager.RespondTemperatureSketch(r.requestId, f.sketch)));
+        fanIn.sketch = sketch.copy();
+        ActorRef<DeviceManager.RespondTemperatureSketch> replyTo = getContext().messageAdapter(
+                DeviceManager.RespondTemperatureSketch.class, reply -> new PartitionReplied(reply.requestId, reply.sketch));
+        for (ActorRef<Command> partition : partitions) {
+            partition.tell(new DeviceManager.RequestTemperatureSketch(fanIn.id, groupId, replyTo));
+        }
+        return this;
+    }
+
+    private Behavior<Command> onReadingChanged(ReadingChanged m) {
+        // Terminated可能先于Device停止前发出的消息处理, 已经不在本Group的Device忽略
+        if (!m.device.equals(deviceIdToActor.get(m.deviceId))) {
+            return this;
+        }
+        Integer previous = sketchKeys.put(m.deviceId, m.key);
+        if (previous == null || previous != m.key) {
+            if (previous != null) {
+                sketch.removeKey(previous);
+            }
+            sketch.addKey(m.key);
+        }
+        updateSnapshotReading(m.deviceId, new DeviceManager.Temperature(m.value));
+        return this;
+    }
+
+    private Behavior<Command> onPartitionReadingChanged(PartitionReadingChanged m) {
+        updateSnapshotReading(m.deviceId, m.reading);
+        return this;
+    }
+
+    // 快照不再向设备收集, 而是发布设备推送来的读数; 分区只转给父Group
+    private void updateSnapshotReading(String deviceId, DeviceManager.TemperatureReading reading) {
+        if (!settings.snapshotDirectory.isPresent()) {
+            return;
+        }
+        if (parent.isPresent()) {
+            parent.get().tell(new PartitionReadingChanged(deviceId, reading));
+        } else if (reading == null) {
+            snapshotReadings.remove(deviceId);
+        } else {
+            snapshotReadings.put(deviceId, reading);
+        }
+    }
+
+    private Behavior<Command> onAllTemperatures(DeviceManager.RequestAllTemperatures r) {
+        if (cacheIsFresh()) {
+            r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, cachedTemperatures));
+        } else {
+            waitingForTemperatures.add(r);
+            startCollection();
+        }
+        return this;
+    }
+
+    private Behavior<Command> onPublishSnapshot() {
+        snapshotWriter.ifPresent(writer -> {
+            try {
+                int skipped = writer.publish(snapshotReadings, System.currentTimeMillis());
+                if (skipped > 0) {
+                    getContext().getLog().warn("{} devices of group {} have ids too long for the snapshot", skipped, groupId);
+                }
+            } catch (IOException e) {
+                getContext().getLog().warn("Failed to publish reading snapshot for group {}", groupId, e);
+            }
+        });
+        return this;
+    }
+
+    private boolean cacheIsFresh() {
+        return cachedTemperatures != null
+                && System.nanoTime() - cachedAtNanos < settings.allTemperaturesCacheTtl.toNanos();
+    }
+
+    // 本地设备和各分区分别收集, 全部回复或超时后合并
+    private void startCollection() {
+        if (!collectionInFlight) {
+            collectionInFlight = true;
+            int parts = 1 + (partitions == null ? 0 : partitions.size());
+            firstPartId = state.lastCollectionId + 1;
+            state.lastCollectionId += parts;
+            pendingParts = new boolean[parts];
+            collectedTemperatures = new HashMap<>();
+            pendingCollectionParts = 0;
+            ActorRef<DeviceManager.RespondAllTemperatures> replyTo =
+                    getContext().messageAdapter(DeviceManager.RespondAllTemperatures.class, WrappedCollectedTemperatures::new);
+            if (!deviceIdToActor.isEmpty()) {
+                // 复制一份, 避免查询actor看到之后的变更
+                Map<String, ActorRef<Device.Command>> devices = new HashMap<>(deviceIdToActor);
+                localCollectionDevices = devices.keySet();
+                getContext().spawnAnonymous(DeviceGroupQuery.create(devices, firstPartId, replyTo, settings.queryTimeout));
+                pendingParts[0] = true;
+                pendingCollectionParts++;
+            }
+            if (partitions != null) {
+                if (partitionDevices == null) {
+                    partitionDevices = new ArrayList<>(Collections.nCopies(partitions.size(), Collections.emptySet()));
+                }
+                for (int i = 0; i < partitions.size(); i++) {
+                    partitions.get(i).tell(new DeviceManager.RequestAllTemperatures(firstPartId + 1 + i, groupId, replyTo));
+                    pendingParts[1 + i] = true;
+                    pendingCollectionParts++;
+                }
+            }
+            if (pendingCollectionParts == 0) {
+                finishCollection();
+            } else {
+                timers.startSingleTimer(CollectionTimedOut.class, new CollectionTimedOut(firstPartId), settings.queryTimeout);
+            }
+        }
+    }
+
+    private Behavior<Command> onCollectedTemperatures(WrappedCollectedTemperatures wrapped) {
+        // 重启前或已超时的收集的回复, 不能合并进新的收集
+        long part = wrapped.response.requestId - firstPartId;
+        if (!collectionInFlight || part < 0 || part >= pendingParts.length || !pendingParts[(int) part]) {
+            return this;
+        }
+        pendingParts[(int) part] = false;
+        collectedTemperatures.putAll(wrapped.response.temperatures);
+        if (part > 0) {
+            partitionDevices.set((int) part - 1, new HashSet<>(wrapped.response.temperatures.keySet()));
+        }
+        if (--pendingCollectionParts == 0) {
+            finishCollection();
+        }
         return this;
     }
 
+    // 没有回复的部分中已知的设备记为超时
+    private Behavior<Command> onCollectionTimedOut(CollectionTimedOut m) {
+        if (!collectionInFlight || m.firstPartId != firstPartId) {
+            return this;
+        }
+        getContext().getLog().warn("{} parts of the temperature collection for group {} did not reply within {}",
+                pendingCollectionParts, groupId, settings.queryTimeout);
+        for (int part = 0; part < pendingParts.length; part++) {
+            if (pendingParts[part]) {
+                Set<String> missing = part == 0 ? localCollectionDevices : partitionDevices.get(part - 1);
+                for (String deviceId : missing) {
+                    collectedTemperatures.putIfAbsent(deviceId, DeviceManager.DeviceTimedOut.INSTANCE);
+                }
+            }
+        }
+        finishCollection();
+        return this;
+    }
+
+    // 一次收集的结果用各自的requestId回复所有等待者
+    private void finishCollection() {
+        collectionInFlight = false;
+        timers.cancel(CollectionTimedOut.class);
+        pendingParts = null;
+        localCollectionDevices = null;
+        Map<String, DeviceManager.TemperatureReading> temperatures = Collections.unmodifiableMap(collectedTemperatures);
+        collectedTemperatures = null;
+        if (!settings.allTemperaturesCacheTtl.isZero()) {
+            cachedTemperatures = temperatures;
+            cachedAtNanos = System.nanoTime();
+        }
+        for (DeviceManager.RequestAllTemperatures r : waitingForTemperatures) {
+            r.replyTo.tell(new DeviceManager.RespondAllTemperatures(r.requestId, temperatures));
+        }
+        waitingForTemperatures.clear();
+    }
+
     private Behavior<Command> onTerminated(DeviceTerminated t) {
         getContext().getLog().info("Device actor for {} has been terminated", t.deviceId);
         deviceIdToActor.remove(t.deviceId);
+        Integer key = sketchKeys.remove(t.deviceId);
+        if (key != null) {
+            sketch.removeKey(key);
+        }
+        updateSnapshotReading(t.deviceId, null);
+        settings.deviceDirectory.ifPresent(directory -> directory.unregister(groupId, t.deviceId, t.device));
         return this;
     }
 
     // Group收到注册Device的信息, 处理并回复给Sender
     private Behavior<Command> onTrackDevice(DeviceManager.RequestTrackDevice trackMsg) {
         if (this.groupId.equals(trackMsg.groupId)) {
+            ActorRef<Command> partition = partitionFor(trackMsg.deviceId);
+            if (partition != null) {
+                // 分区直接回复给replyTo
+                partition.tell(trackMsg);
+                return this;
+            }
             ActorRef<Device.Command> deviceActor = deviceIdToActor.get(trackMsg.deviceId);
             if (deviceActor == null) {
                 getContext().getLog().info("Creating device actor for {}", trackMsg.deviceId);
-                deviceActor = getContext().spawn(Device.create(groupId, trackMsg.deviceId), "device-" + trackMsg.deviceId);
-                getContext().watchWith(deviceActor, new DeviceTerminated(deviceActor, groupId, trackMsg.deviceId));  // 当Device stop时, 会往Group发DeviceTerminated
-                deviceIdToActor.put(trackMsg.deviceId, deviceActor);
+                deviceActor = spawnDevice(trackMsg.deviceId, Optional.empty());
             }
-            trackMsg.replyTo.tell(new DeviceManager.DeviceRegistered(deviceActor));
+            trackMsg.replyTo.tell(new DeviceManager.DeviceRegistered(groupId, trackMsg.deviceId, deviceActor));
         }
         else {
             getContext().getLog().
@@ -84,7 +638,138 @@ public class DeviceGroup extends AbstractBehavior<DeviceGroup.Command> {
         return this;
     }
 
+    private Behavior<Command> onRestoreDevices(DeviceManager.RequestRestoreDevices restoreMsg) {
+        if (!this.groupId.equals(restoreMsg.groupId)) {
+            getContext().getLog().
+                    warn("Ignoring RestoreDevices request for {}. This actor is responsible for {}.", restoreMsg.groupId, this.groupId);
+            return this;
+        }
+        int created = 0;
+        Map<ActorRef<Command>, List<DeviceRegistry.Entry>> forPartitions = new HashMap<>();
+        for (DeviceRegistry.Entry entry : restoreMsg.devices) {
+            ActorRef<Command> partition = partitionFor(entry.deviceId);
+            if (partition != null) {
+                forPartitions.computeIfAbsent(partition, p -> new ArrayList<>()).add(entry);
+            } else if (!deviceIdToActor.containsKey(entry.deviceId)) {
+                spawnDevice(entry.deviceId, entry.lastReading);
+                created++;
+            }
+        }
+        getContext().getLog().info("Restored {} device actors for group {}", created, groupId);
+        if (forPartitions.isEmpty()) {
+            restoreMsg.replyTo.tell(new DeviceManager.DevicesRestored(restoreMsg.requestId, groupId, created));
+            return this;
+        }
+        FanIn fanIn = startFanIn(forPartitions.size(), created, f ->
+                restoreMsg.replyTo.tell(new DeviceManager.DevicesRestored(restoreMsg.requestId, groupId, f.count)));
+        ActorRef<DeviceManager.DevicesRestored> replyTo = getContext().messageAdapter(DeviceManager.DevicesRestored.class,
+                reply -> new PartitionReplied(reply.requestId, reply.created, null));
+        forPartitions.forEach((partition, entries) ->
+                partition.tell(new DeviceManager.RequestRestoreDevices(fanIn.id, groupId, entries, replyTo)));
+        return this;
+    }
+
+    // 设备的确认没有人等待, 整批只回复一次; 有分区时等分区都转发完再回复
+    private Behavior<Command> onRecordGroupTemperatures(DeviceManager.RecordGroupTemperatures r) {
+        ActorRef<Device.TemperatureRecorded> ignore = getContext().getSystem().ignoreRef();
+        Map<ActorRef<Command>, PartitionBatch> forPartitions = null;
+        int local = 0;
+        for (int i = 0; i < r.deviceIds.size(); i++) {
+            String deviceId = r.deviceIds.get(i);
+            ActorRef<Command> partition = partitionFor(deviceId);
+            if (partition != null) {
+                if (forPartitions == null) {
+                    forPartitions = new HashMap<>();
+                }
+                forPartitions.computeIfAbsent(partition, p -> new PartitionBatch(r.deviceIds.size()))
+                        .add(deviceId, r.readingRequestId(i), r.values[i]);
+                continue;
+            }
+            ActorRef<Device.Command> deviceActor = deviceIdToActor.get(deviceId);
+            if (deviceActor == null) {
+                getContext().getLog().info("Creating device actor for {}", deviceId);
+                deviceActor = spawnDevice(deviceId, Optional.empty());
+            }
+            deviceActor.tell(new Device.RecordTemperature(r.readingRequestId(i), r.values[i], r.sender, ignore));
+            local++;
+        }
+        if (forPartitions == null) {
+            r.replyTo.tell(new DeviceManager.GroupTemperaturesRecorded(r.requestId, local));
+            return this;
+        }
+        FanIn fanIn = startFanIn(forPartitions.size(), local, f ->
+                r.replyTo.tell(new DeviceManager.GroupTemperaturesRecorded(r.requestId, f.count)));
+        ActorRef<DeviceManager.GroupTemperaturesRecorded> replyTo = getContext().messageAdapter(
+                DeviceManager.GroupTemperaturesRecorded.class, reply -> new PartitionReplied(reply.requestId, reply.recorded, null));
+        forPartitions.forEach((partition, batch) -> partition.tell(new DeviceManager.RecordGroupTemperatures(
+                fanIn.id, groupId, batch.deviceIds, batch.values, batch.requestIds, r.sender, replyTo)));
+        return this;
+    }
+
+    // 转发给某个分区的子批次, 保留每条读数原来的requestId
+    private static final class PartitionBatch {
+        final List<String> deviceIds = new ArrayList<>();
+        final long[] requestIds;
+        final double[] values;
+
+        PartitionBatch(int capacity) {
+            this.requestIds = new long[capacity];
+            this.values = new double[capacity];
+        }
+
+        void add(String deviceId, long requestId, double value) {
+            requestIds[deviceIds.size()] = requestId;
+            values[deviceIds.size()] = value;
+            deviceIds.add(deviceId);
+        }
+    }
+
+    private ActorRef<Device.Command> spawnDevice(String deviceId, Optional<Double> lastReading) {
+        ActorRef<Device.Command> deviceActor =
+                getContext().spawn(Device.create(groupId, deviceId, lastReading, settings, archiveWriter,
+                        Optional.of(getContext().getSelf())), "device-" + deviceId);
+        getContext().watchWith(deviceActor, new DeviceTerminated(deviceActor, groupId, deviceId));  // 当Device stop时, 会往Group发DeviceTerminated
+        deviceIdToActor.put(deviceId, deviceActor);
+        // 有读数的设备启动后会推送读数
+        updateSnapshotReading(deviceId, DeviceManager.TemperatureNotAvailable.INSTANCE);
+        settings.deviceDirectory.ifPresent(directory -> directory.register(groupId, deviceId, deviceActor));
+        return deviceActor;
+    }
+
+    private Behavior<Command> onCrash() {
+        throw new IllegalStateException("Simulated failure of device group " + groupId);
+    }
+
+    private Behavior<Command> onPreRestart() {
+        state.restarts++;
+        settings.restartCounters.ifPresent(RestartCounters::groupRestarted);
+        getContext().getLog().warn("DeviceGroup {} restarting with {} devices, {} restarts so far",
+                groupId, deviceIdToActor.size(), state.restarts);
+        return this;
+    }
+
     private DeviceGroup onPostStop() {
+        snapshotWriter.ifPresent(writer -> {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                getContext().getLog().warn("Failed to close reading snapshot for group {}", groupId, e);
+            }
+        });
+        // Group停止时不会再处理子actor的DeviceTerminated, 在这里统一注销
+        settings.deviceDirectory.ifPresent(directory ->
+                deviceIdToActor.forEach((deviceId, device) -> directory.unregister(groupId, deviceId, device)));
+        // 子actor(包括分区的设备)都已停止, 它们封存的最后一个块已经提交给Writer; 分区的Writer属于父Group
+        archiveWriter.filter(writer -> !parent.isPresent()).ifPresent(writer -> {
+            try {
+                writer.close();
+                if (writer.failedBlocks() > 0) {
+                    getContext().getLog().warn("Failed to archive {} blocks of group {}", writer.failedBlocks(), groupId);
+                }
+            } catch (IOException e) {
+                getContext().getLog().warn("Failed to close reading archive for group {}", groupId, e);
+            }
+        });
         getContext().getLog().info("DeviceGroup {} stopped", groupId);
         return this;
     }
@@ -8,9 +8,13 @@ import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
@@ -34,11 +38,117 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
     // 回复注册消息
     public static final class DeviceRegistered {
-        // 注册的设备Actor引用
+        // 用于在同一个replyTo上区分多个注册请求的回复
+        public final String groupId;
+        public final String deviceId;
+        // 注册的设备Actor引用, overloaded时为null
         public final ActorRef<Device.Command> device;
+        // 因过载被拒绝, 调用方可以稍后重试
+        public final boolean overloaded;
 
-        public DeviceRegistered(ActorRef<Device.Command> device) {
+        public DeviceRegistered(String groupId, String deviceId, ActorRef<Device.Command> device) {
+            this(groupId, deviceId, device, false);
+        }
+
+        private DeviceRegistered(String groupId, String deviceId, ActorRef<Device.Command> device, boolean overloaded) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
             this.device = device;
+            this.overloaded = overloaded;
+        }
+
+        public static DeviceRegistered overloaded(String groupId, String deviceId) {
+            return new DeviceRegistered(groupId, deviceId, null, true);
+        }
+    }
+
+    // 批量恢复某个Group下的设备, 用于启动时从注册表恢复
+    public static final class RequestRestoreDevices implements DeviceManager.Command, DeviceGroup.Command {
+        final long requestId;
+        final String groupId;
+        final List<DeviceRegistry.Entry> devices;
+        final ActorRef<DevicesRestored> replyTo;
+
+        public RequestRestoreDevices(long requestId, String groupId, List<DeviceRegistry.Entry> devices,
+                                     ActorRef<DevicesRestored> replyTo) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.devices = devices;
+            this.replyTo = replyTo;
+        }
+    }
+
+    // 回复批量恢复结果
+    public static final class DevicesRestored {
+        public final long requestId;
+        public final String groupId;
+        // 新创建的设备数, 已存在的设备不会被覆盖
+        public final int created;
+
+        public DevicesRestored(long requestId, String groupId, int created) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.created = created;
+        }
+    }
+
+    // 批量记录同一个Group下多个设备的温度, 不存在的设备会自动创建.
+    // 第i条读数以requestId + i作为设备端的requestId, 重发同一批次时会被设备按replyTo区分的去重窗口过滤
+    public static final class RecordGroupTemperatures implements DeviceManager.Command, DeviceGroup.Command {
+        final long requestId;
+        final String groupId;
+        final List<String> deviceIds;
+        final double[] values;
+        // 分区转发的子批次读数不连续, 逐条带上原始的requestId; 为null时第i条为requestId + i
+        final long[] readingRequestIds;
+        // 设备去重时的发送方, 分区转发的子批次为原批次的replyTo
+        final ActorRef<?> sender;
+        final ActorRef<GroupTemperaturesRecorded> replyTo;
+
+        public RecordGroupTemperatures(long requestId, String groupId, List<String> deviceIds, double[] values,
+                                       ActorRef<GroupTemperaturesRecorded> replyTo) {
+            this(requestId, groupId, deviceIds, values, null, replyTo, replyTo);
+        }
+
+        RecordGroupTemperatures(long requestId, String groupId, List<String> deviceIds, double[] values,
+                                long[] readingRequestIds, ActorRef<?> sender,
+                                ActorRef<GroupTemperaturesRecorded> replyTo) {
+            if (deviceIds.size() > values.length) {
+                throw new IllegalArgumentException("Expected " + deviceIds.size() + " values, got " + values.length);
+            }
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+            this.values = values;
+            this.readingRequestIds = readingRequestIds;
+            this.sender = sender;
+            this.replyTo = replyTo;
+        }
+
+        long readingRequestId(int i) {
+            return readingRequestIds != null ? readingRequestIds[i] : requestId + i;
+        }
+    }
+
+    // 整个批次只回复一次, 表示所有读数都已转发给各自的设备
+    public static final class GroupTemperaturesRecorded {
+        public final long requestId;
+        public final int recorded;
+        // 因过载被拒绝, 整个批次都没有记录
+        public final boolean overloaded;
+
+        public GroupTemperaturesRecorded(long requestId, int recorded) {
+            this(requestId, recorded, false);
+        }
+
+        private GroupTemperaturesRecorded(long requestId, int recorded, boolean overloaded) {
+            this.requestId = requestId;
+            this.recorded = recorded;
+            this.overloaded = overloaded;
+        }
+
+        public static GroupTemperaturesRecorded overloaded(long requestId) {
+            return new GroupTemperaturesRecorded(requestId, 0, true);
         }
     }
 
@@ -57,12 +167,23 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
     // 回复某个Group有多少Device
     public static final class ReplyDeviceList {
-        final long requestId;
-        final Set<String> ids;  // deviceId列表
+        public final long requestId;
+        public final Set<String> ids;  // deviceId列表
+        // 因过载被拒绝, ids为空
+        public final boolean overloaded;
 
         public ReplyDeviceList(long requestId, Set<String> ids) {
+            this(requestId, ids, false);
+        }
+
+        private ReplyDeviceList(long requestId, Set<String> ids, boolean overloaded) {
             this.requestId = requestId;
             this.ids = ids;
+            this.overloaded = overloaded;
+        }
+
+        public static ReplyDeviceList overloaded(long requestId) {
+            return new ReplyDeviceList(requestId, Collections.emptySet(), true);
         }
     }
     // 终止Group的消息, 无须回复
@@ -91,15 +212,151 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
 
     // 返回devices温度信息
     public static final class RespondAllTemperatures {
-        final long requestId;
-        final Map<String, TemperatureReading> temperatures;
+        public final long requestId;
+        public final Map<String, TemperatureReading> temperatures;
+        // 因过载被拒绝, temperatures为空
+        public final boolean overloaded;
 
         public RespondAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures) {
+            this(requestId, temperatures, false);
+        }
+
+        private RespondAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures, boolean overloaded) {
+            this.requestId = requestId;
+            this.temperatures = temperatures;
+            this.overloaded = overloaded;
+        }
+
+        public static RespondAllTemperatures overloaded(long requestId) {
+            return new RespondAllTemperatures(requestId, Collections.emptyMap(), true);
+        }
+    }
+
+    // 跨Group查询温度, groupIds为空表示所有Group
+    public static final class RequestFleetTemperatures implements Command {
+        final long requestId;
+        final Optional<Set<String>> groupIds;
+        // 超过截止时间还没回复的Group记入timedOutGroups
+        final Duration deadline;
+        // 为true时每个Group收集完成就先回复一个FleetTemperaturesPartial
+        final boolean streamPartialResults;
+        final ActorRef<FleetTemperaturesResponse> replyTo;
+
+        public RequestFleetTemperatures(long requestId, Optional<Set<String>> groupIds, Duration deadline,
+                                        boolean streamPartialResults, ActorRef<FleetTemperaturesResponse> replyTo) {
             this.requestId = requestId;
+            this.groupIds = groupIds;
+            this.deadline = deadline;
+            this.streamPartialResults = streamPartialResults;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public interface FleetTemperaturesResponse {}
+
+    // 单个Group的部分结果, 只在streamPartialResults时发送
+    public static final class FleetTemperaturesPartial implements FleetTemperaturesResponse {
+        public final long requestId;
+        public final String groupId;
+        public final Map<String, TemperatureReading> temperatures;
+
+        public FleetTemperaturesPartial(long requestId, String groupId, Map<String, TemperatureReading> temperatures) {
+            this.requestId = requestId;
+            this.groupId = groupId;
             this.temperatures = temperatures;
         }
     }
 
+    // 最终结果, 总是最后一条回复
+    public static final class RespondFleetTemperatures implements FleetTemperaturesResponse {
+        public final long requestId;
+        // groupId -> 该Group的温度
+        public final Map<String, Map<String, TemperatureReading>> groups;
+        public final Set<String> timedOutGroups;
+        // 被准入控制拒绝的Group
+        public final Set<String> overloadedGroups;
+
+        public RespondFleetTemperatures(long requestId, Map<String, Map<String, TemperatureReading>> groups,
+                                        Set<String> timedOutGroups, Set<String> overloadedGroups) {
+            this.requestId = requestId;
+            this.groups = groups;
+            this.timedOutGroups = timedOutGroups;
+            this.overloadedGroups = overloadedGroups;
+        }
+    }
+
+    // 查询一个Group当前读数的分布, 回复的大小与桶数而不是设备数成正比
+    public static final class RequestTemperatureSketch implements DeviceGroup.Command, Command {
+        final long requestId;
+        final String groupId;
+        final ActorRef<RespondTemperatureSketch> replyTo;
+
+        public RequestTemperatureSketch(long requestId, String groupId, ActorRef<RespondTemperatureSketch> replyTo) {
+            this.requestId = requestId;
+            this.groupId = groupId;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class RespondTemperatureSketch {
+        public final long requestId;
+        // 每个有读数的设备计一次最新读数
+        public final TemperatureSketch sketch;
+        // 因过载被拒绝, sketch为空
+        public final boolean overloaded;
+
+        public RespondTemperatureSketch(long requestId, TemperatureSketch sketch) {
+            this(requestId, sketch, false);
+        }
+
+        private RespondTemperatureSketch(long requestId, TemperatureSketch sketch, boolean overloaded) {
+            this.requestId = requestId;
+            this.sketch = sketch;
+            this.overloaded = overloaded;
+        }
+
+        public static RespondTemperatureSketch overloaded(long requestId) {
+            return new RespondTemperatureSketch(requestId, new TemperatureSketch(), true);
+        }
+    }
+
+    // 跨Group查询温度分布, groupIds为空表示所有Group
+    public static final class RequestFleetTemperatureSketch implements Command {
+        final long requestId;
+        final Optional<Set<String>> groupIds;
+        // 超过截止时间还没回复的Group记入timedOutGroups
+        final Duration deadline;
+        final ActorRef<RespondFleetTemperatureSketch> replyTo;
+
+        public RequestFleetTemperatureSketch(long requestId, Optional<Set<String>> groupIds, Duration deadline,
+                                             ActorRef<RespondFleetTemperatureSketch> replyTo) {
+            this.requestId = requestId;
+            this.groupIds = groupIds;
+            this.deadline = deadline;
+            this.replyTo = replyTo;
+        }
+    }
+
+    public static final class RespondFleetTemperatureSketch {
+        public final long requestId;
+        // 按时回复的Group合并后的分布
+        public final TemperatureSketch fleet;
+        // groupId -> 该Group的分布
+        public final Map<String, TemperatureSketch> groups;
+        public final Set<String> timedOutGroups;
+        // 被准入控制拒绝的Group
+        public final Set<String> overloadedGroups;
+
+        public RespondFleetTemperatureSketch(long requestId, TemperatureSketch fleet, Map<String, TemperatureSketch> groups,
+                                             Set<String> timedOutGroups, Set<String> overloadedGroups) {
+            this.requestId = requestId;
+            this.fleet = fleet;
+            this.groups = groups;
+            this.timedOutGroups = timedOutGroups;
+            this.overloadedGroups = overloadedGroups;
+        }
+    }
+
     public interface TemperatureReading {}
     public static final class Temperature implements TemperatureReading {
         public final double value;
@@ -142,15 +399,36 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
         INSTANCE
     }
 
+    // 使用ActorSystem配置中的iot.devices
     public static Behavior<Command> create() {
-        return Behaviors.setup(DeviceManager::new);
+        return Behaviors.setup(context ->
+                new DeviceManager(context, DeviceSettings.create(context.getSystem().settings().config())));
     }
 
+    public static Behavior<Command> create(DeviceSettings settings) {
+        return Behaviors.setup(context -> new DeviceManager(context, settings));
+    }
+
+    // 每个Group的准入控制状态
+    private static final class Admission {
+        final TokenBucket tokenBucket;
+        // 已转发但Group还没处理的请求数, 由Group在处理时减一
+        final GroupBacklog backlog;
+
+        Admission(TokenBucket tokenBucket, GroupBacklog backlog) {
+            this.tokenBucket = tokenBucket;
+            this.backlog = backlog;
+        }
+    }
+
+    private final DeviceSettings settings;
     // 保存所有Group Actor
     private final Map<String, ActorRef<DeviceGroup.Command>> groupIdToActor = new HashMap<>();
+    private final Map<String, Admission> groupIdToAdmission = new HashMap<>();
 
-    public DeviceManager(ActorContext<Command> context) {
+    public DeviceManager(ActorContext<Command> context, DeviceSettings settings) {
         super(context);
+        this.settings = settings;
         context.getLog().info("DeviceManager started");
     }
 
@@ -159,6 +437,12 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
         return newReceiveBuilder()
                 .onMessage(RequestTrackDevice.class, this::onTrackDevice)
                 .onMessage(RequestDeviceList.class, this::onRequestDeviceList)
+                .onMessage(RequestRestoreDevices.class, this::onRestoreDevices)
+                .onMessage(RecordGroupTemperatures.class, this::onRecordGroupTemperatures)
+                .onMessage(RequestAllTemperatures.class, this::onRequestAllTemperatures)
+                .onMessage(RequestFleetTemperatures.class, this::onRequestFleetTemperatures)
+                .onMessage(RequestTemperatureSketch.class, this::onRequestTemperatureSketch)
+                .onMessage(RequestFleetTemperatureSketch.class, this::onRequestFleetTemperatureSketch)
                 .onMessage(DeviceGroupTerminated.class, this::onTerminated)
                 .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
@@ -172,33 +456,140 @@ public class DeviceManager extends AbstractBehavior<DeviceManager.Command> {
     private Behavior<Command> onTerminated(DeviceGroupTerminated t) {
         getContext().getLog().info("Device group actor for {} has been terminated", t.groupId);
         groupIdToActor.remove(t.groupId);
+        groupIdToAdmission.remove(t.groupId);
         return this;
     }
 
     private Behavior<Command> onRequestDeviceList(RequestDeviceList request) {
         ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
         if (ref != null) {
-            ref.tell(request);  // 透传给Group, Group会直接回复给request.replyTo
+            // 透传给Group, Group会直接回复给request.replyTo
+            if (!admit(request.groupId, ref, request)) {
+                request.replyTo.tell(ReplyDeviceList.overloaded(request.requestId));
+            }
         } else {
             request.replyTo.tell(new ReplyDeviceList(request.requestId, Collections.emptySet()));
         }
         return this;
     }
 
+    private Behavior<Command> onRequestAllTemperatures(RequestAllTemperatures request) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
+        if (ref != null) {
+            if (!admit(request.groupId, ref, request)) {
+                request.replyTo.tell(RespondAllTemperatures.overloaded(request.requestId));
+            }
+        } else {
+            request.replyTo.tell(new RespondAllTemperatures(request.requestId, Collections.emptyMap()));
+        }
+        return this;
+    }
+
+    // 查询actor把每个Group的请求发回给DeviceManager, 与其他请求一样经过准入控制
+    private Behavior<Command> onRequestFleetTemperatures(RequestFleetTemperatures request) {
+        List<String> selected = selectGroups(request.groupIds);
+        if (selected.isEmpty()) {
+            request.replyTo.tell(new RespondFleetTemperatures(request.requestId, Collections.emptyMap(),
+                    Collections.emptySet(), Collections.emptySet()));
+        } else {
+            Optional<ActorRef<FleetTemperaturesResponse>> partialsTo =
+                    request.streamPartialResults ? Optional.of(request.replyTo) : Optional.empty();
+            getContext().spawnAnonymous(FleetQuery.create(selected, getContext().getSelf(), request.requestId,
+                    request.deadline, settings.fleetQueryFanOut, partialsTo, request.replyTo.narrow()));
+        }
+        return this;
+    }
+
+    private Behavior<Command> onRequestTemperatureSketch(RequestTemperatureSketch request) {
+        ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(request.groupId);
+        if (ref != null) {
+            if (!admit(request.groupId, ref, request)) {
+                request.replyTo.tell(RespondTemperatureSketch.overloaded(request.requestId));
+            }
+        } else {
+            request.replyTo.tell(new RespondTemperatureSketch(request.requestId, new TemperatureSketch()));
+        }
+        return this;
+    }
+
+    // 各Group的sketch由FleetSketchQuery合并, DeviceManager不等待回复; 每个Group的请求同样经过准入控制
+    private Behavior<Command> onRequestFleetTemperatureSketch(RequestFleetTemperatureSketch request) {
+        List<String> selected = selectGroups(request.groupIds);
+        if (selected.isEmpty()) {
+            request.replyTo.tell(new RespondFleetTemperatureSketch(request.requestId, new TemperatureSketch(),
+                    Collections.emptyMap(), Collections.emptySet(), Collections.emptySet()));
+        } else {
+            getContext().spawnAnonymous(FleetSketchQuery.create(selected, getContext().getSelf(), request.requestId,
+                    request.deadline, request.replyTo));
+        }
+        return this;
+    }
+
+    private List<String> selectGroups(Optional<Set<String>> groupIds) {
+        List<String> selected = new ArrayList<>();
+        for (String groupId : groupIdToActor.keySet()) {
+            if (!groupIds.isPresent() || groupIds.get().contains(groupId)) {
+                selected.add(groupId);
+            }
+        }
+        return selected;
+    }
+
     private Behavior<Command> onTrackDevice(RequestTrackDevice trackMsg) {
-        String groupId = trackMsg.groupId;
+        if (!admit(trackMsg.groupId, groupActorFor(trackMsg.groupId), trackMsg)) {
+            trackMsg.replyTo.tell(DeviceRegistered.overloaded(trackMsg.groupId, trackMsg.deviceId));
+        }
+        return this;
+    }
+
+    private Behavior<Command> onRecordGroupTemperatures(RecordGroupTemperatures request) {
+        if (!admit(request.groupId, groupActorFor(request.groupId), request)) {
+            request.replyTo.tell(GroupTemperaturesRecorded.overloaded(request.requestId));
+        }
+        return this;
+    }
+
+    // 通过准入检查则转发给Group, 否则返回false由调用方回复overloaded
+    private boolean admit(String groupId, ActorRef<DeviceGroup.Command> group, DeviceGroup.Command command) {
+        Admission admission = groupIdToAdmission.get(groupId);
+        long now = System.nanoTime();
+        if (settings.admissionRatePerGroup > 0 && !admission.tokenBucket.tryAcquire(now)) {
+            getContext().getLog().debug("Rejecting request for group {}: rate limit exceeded", groupId);
+            return false;
+        }
+        if (settings.maxGroupBacklog > 0 && admission.backlog.size() >= settings.maxGroupBacklog) {
+            if (!admission.backlog.expired(now)) {
+                getContext().getLog().debug("Rejecting request for group {}: backlog of {} requests", groupId, admission.backlog.size());
+                return false;
+            }
+            getContext().getLog().warn("Group {} processed none of its {} admitted requests within {}, assuming they were dropped",
+                    groupId, admission.backlog.size(), settings.admissionBacklogTimeout);
+            admission.backlog.reset();
+        }
+        admission.backlog.admitted(now);
+        group.tell(new DeviceGroup.Admitted(command));
+        return true;
+    }
+
+    // 每个Group各自批量创建设备, 多个Group之间并行执行
+    private Behavior<Command> onRestoreDevices(RequestRestoreDevices restoreMsg) {
+        groupActorFor(restoreMsg.groupId).tell(restoreMsg);
+        return this;
+    }
+
+    private ActorRef<DeviceGroup.Command> groupActorFor(String groupId) {
         ActorRef<DeviceGroup.Command> ref = groupIdToActor.get(groupId);
-        if (ref != null) {
-            ref.tell(trackMsg);
-        }else {
+        if (ref == null) {
             getContext().getLog().info("Creating device group actor for {}", groupId);
-            ActorRef<DeviceGroup.Command> groupActor =
-                    getContext().spawn(DeviceGroup.create(groupId), "group-" + groupId);
-            getContext().watchWith(groupActor, new DeviceGroupTerminated(groupId));
-            groupActor.tell(trackMsg);
-            groupIdToActor.put(groupId, groupActor);
+            Admission admission = new Admission(
+                    new TokenBucket(settings.admissionRatePerGroup, settings.admissionBurst, System.nanoTime()),
+                    new GroupBacklog(settings.admissionBacklogTimeout));
+            ref = getContext().spawn(DeviceGroup.create(groupId, settings, admission.backlog), "group-" + groupId);
+            getContext().watchWith(ref, new DeviceGroupTerminated(groupId));
+            groupIdToActor.put(groupId, ref);
+            groupIdToAdmission.put(groupId, admission);
         }
-        return this;
+        return ref;
     }
 
 }
@@ -0,0 +1,128 @@
+package com.iot.devices;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * 设备注册表文件, 用于启动时批量恢复所有Group和Device.
+ * <p>
+ * 每行一个设备: groupId,deviceId,lastReading, 其中lastReading可为空; 空行和#开头的行会被忽略.
+ * 文件通过内存映射按区段读取, 避免逐行的系统调用和拷贝.
+ */
+public final class DeviceRegistry {
+
+    // 单次映射的最大区段, 跨区段的行会在下一个区段重新读取
+    private static final long MAX_REGION = 256L * 1024 * 1024;
+
+    public static final class Entry {
+        public final String groupId;
+        public final String deviceId;
+        public final Optional<Double> lastReading;
+
+        public Entry(String groupId, String deviceId, Optional<Double> lastReading) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.lastReading = lastReading;
+        }
+    }
+
+    // groupId -> 该Group下的设备, 保持文件中的顺序
+    public final Map<String, List<Entry>> groups;
+    public final int deviceCount;
+    public final long loadNanos;
+
+    private DeviceRegistry(Map<String, List<Entry>> groups, int deviceCount, long loadNanos) {
+        this.groups = Collections.unmodifiableMap(groups);
+        this.deviceCount = deviceCount;
+        this.loadNanos = loadNanos;
+    }
+
+    public static DeviceRegistry load(Path file) throws IOException {
+        long start = System.nanoTime();
+        Map<String, List<Entry>> groups = new LinkedHashMap<>();
+        int deviceCount = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            int lineNumber = 0;
+            while (position < size) {
+                long length = Math.min(MAX_REGION, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean lastRegion = position + length == size;
+                int lineStart = 0;
+                int limit = region.limit();
+                for (int i = 0; i <= limit; i++) {
+                    boolean endOfLine = i == limit ? lastRegion && lineStart < limit : region.get(i) == '\n';
+                    if (!endOfLine) {
+                        continue;
+                    }
+                    lineNumber++;
+                    Entry entry = parseLine(region, lineStart, i, file, lineNumber);
+                    if (entry != null) {
+                        groups.computeIfAbsent(entry.groupId, g -> new ArrayList<>()).add(entry);
+                        deviceCount++;
+                    }
+                    lineStart = i + 1;
+                }
+                if (lineStart == 0 && !lastRegion) {
+                    throw new IOException("Line longer than " + MAX_REGION + " bytes in " + file);
+                }
+                // 不完整的最后一行留给下一个区段
+                position += lastRegion ? length : lineStart;
+            }
+        }
+        return new DeviceRegistry(groups, deviceCount, System.nanoTime() - start);
+    }
+
+    private static Entry parseLine(MappedByteBuffer region, int from, int to, Path file, int lineNumber)
+            throws IOException {
+        int end = to;
+        if (end > from && region.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end == from || region.get(from) == '#') {
+            return null;
+        }
+        int firstComma = indexOf(region, from, end, (byte) ',');
+        int secondComma = firstComma < 0 ? -1 : indexOf(region, firstComma + 1, end, (byte) ',');
+        if (secondComma < 0) {
+            throw new IOException("Expected groupId,deviceId,lastReading at " + file + ":" + lineNumber);
+        }
+        String groupId = string(region, from, firstComma);
+        String deviceId = string(region, firstComma + 1, secondComma);
+        String reading = string(region, secondComma + 1, end).trim();
+        try {
+            Optional<Double> lastReading = reading.isEmpty() ? Optional.empty() : Optional.of(Double.parseDouble(reading));
+            return new Entry(groupId, deviceId, lastReading);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid reading '" + reading + "' at " + file + ":" + lineNumber, e);
+        }
+    }
+
+    private static int indexOf(MappedByteBuffer region, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (region.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String string(MappedByteBuffer region, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = region.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
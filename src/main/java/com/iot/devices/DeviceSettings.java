@@ -0,0 +1,269 @@
+package com.iot.devices;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.SupervisorStrategy;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.Config;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * DeviceManager/DeviceGroup/Device的配置, 默认值见reference.conf中的iot.devices.
+ * 不可变, 通过withXxx方法得到修改后的副本.
+ */
+public final class DeviceSettings {
+
+    public final Duration queryTimeout;
+    // 为0表示不缓存, 只合并同时进行的收集
+    public final Duration allTemperaturesCacheTtl;
+    public final int fleetQueryFanOut;
+    // 为0表示不限流
+    public final double admissionRatePerGroup;
+    public final int admissionBurst;
+    // 为0表示不限制
+    public final int maxGroupBacklog;
+    // 超过该时间没有进展的backlog视为已丢失, 清零重新计数
+    public final Duration admissionBacklogTimeout;
+    // 为空表示不发布读数快照
+    public final Optional<Path> snapshotDirectory;
+    public final Duration snapshotInterval;
+    public final int snapshotInitialCapacity;
+    // 告警规则只能通过代码配置, 没有订阅者时不求值
+    public final List<AlertRule> alertRules;
+    public final Optional<ActorRef<AlertEvent>> alertSubscriber;
+    // 为空表示不归档历史读数
+    public final Optional<Path> archiveDirectory;
+    // 每个设备攒够多少条读数或最早一条超过多久就封存一个压缩块
+    public final int archiveBlockSize;
+    public final Duration archiveMaxBlockAge;
+    // 只能通过代码配置, 为空表示不维护目录
+    public final Optional<DeviceDirectory> deviceDirectory;
+    // Group的设备数或每秒消息数达到阈值时拆分成partitionCount个分区, 为0表示不按该条件拆分
+    public final int partitionMaxDevices;
+    public final int partitionMaxMessagesPerSecond;
+    public final int partitionCount;
+    // Device和DeviceGroup抛出异常后按指数退避重启, minBackoff为0表示不监督
+    public final Duration supervisionMinBackoff;
+    public final Duration supervisionMaxBackoff;
+    public final double supervisionRandomFactor;
+    // 退避期间暂存的消息数上限
+    public final int supervisionStashCapacity;
+    // 只能通过代码配置, 为空表示不汇总重启次数
+    public final Optional<RestartCounters> restartCounters;
+
+    public static DeviceSettings create(Config config) {
+        Config c = config.getConfig("iot.devices");
+        String snapshotDirectory = c.getString("snapshot.directory");
+        String archiveDirectory = c.getString("archive.directory");
+        Builder b = new Builder();
+        b.queryTimeout = c.getDuration("query-timeout");
+        b.allTemperaturesCacheTtl = c.getDuration("all-temperatures-cache-ttl");
+        b.fleetQueryFanOut = c.getInt("fleet-query-fan-out");
+        b.admissionRatePerGroup = c.getDouble("admission.rate-per-group");
+        b.admissionBurst = c.getInt("admission.burst");
+        b.maxGroupBacklog = c.getInt("admission.max-group-backlog");
+        b.admissionBacklogTimeout = c.getDuration("admission.backlog-timeout");
+        b.snapshotDirectory = snapshotDirectory.isEmpty() ? Optional.empty() : Optional.of(Paths.get(snapshotDirectory));
+        b.snapshotInterval = c.getDuration("snapshot.interval");
+        b.snapshotInitialCapacity = c.getInt("snapshot.initial-capacity");
+        b.alertRules = Collections.emptyList();
+        b.alertSubscriber = Optional.empty();
+        b.archiveDirectory = archiveDirectory.isEmpty() ? Optional.empty() : Optional.of(Paths.get(archiveDirectory));
+        b.archiveBlockSize = c.getInt("archive.block-size");
+        b.archiveMaxBlockAge = c.getDuration("archive.max-block-age");
+        b.deviceDirectory = Optional.empty();
+        b.partitionMaxDevices = c.getInt("partition.max-devices");
+        b.partitionMaxMessagesPerSecond = c.getInt("partition.max-messages-per-second");
+        b.partitionCount = c.getInt("partition.count");
+        b.supervisionMinBackoff = c.getDuration("supervision.min-backoff");
+        b.supervisionMaxBackoff = c.getDuration("supervision.max-backoff");
+        b.supervisionRandomFactor = c.getDouble("supervision.random-factor");
+        b.supervisionStashCapacity = c.getInt("supervision.stash-capacity");
+        b.restartCounters = Optional.empty();
+        return new DeviceSettings(b);
+    }
+
+    // 与DeviceSettings字段一一对应的可变副本, withXxx只修改自己关心的字段, 新增配置项时不必改动每个withXxx
+    private static final class Builder {
+        Duration queryTimeout;
+        Duration allTemperaturesCacheTtl;
+        int fleetQueryFanOut;
+        double admissionRatePerGroup;
+        int admissionBurst;
+        int maxGroupBacklog;
+        Duration admissionBacklogTimeout;
+        Optional<Path> snapshotDirectory;
+        Duration snapshotInterval;
+        int snapshotInitialCapacity;
+        List<AlertRule> alertRules;
+        Optional<ActorRef<AlertEvent>> alertSubscriber;
+        Optional<Path> archiveDirectory;
+        int archiveBlockSize;
+        Duration archiveMaxBlockAge;
+        Optional<DeviceDirectory> deviceDirectory;
+        int partitionMaxDevices;
+        int partitionMaxMessagesPerSecond;
+        int partitionCount;
+        Duration supervisionMinBackoff;
+        Duration supervisionMaxBackoff;
+        double supervisionRandomFactor;
+        int supervisionStashCapacity;
+        Optional<RestartCounters> restartCounters;
+
+        Builder() {
+        }
+
+        Builder(DeviceSettings s) {
+            this.queryTimeout = s.queryTimeout;
+            this.allTemperaturesCacheTtl = s.allTemperaturesCacheTtl;
+            this.fleetQueryFanOut = s.fleetQueryFanOut;
+            this.admissionRatePerGroup = s.admissionRatePerGroup;
+            this.admissionBurst = s.admissionBurst;
+            this.maxGroupBacklog = s.maxGroupBacklog;
+            this.admissionBacklogTimeout = s.admissionBacklogTimeout;
+            this.snapshotDirectory = s.snapshotDirectory;
+            this.snapshotInterval = s.snapshotInterval;
+            this.snapshotInitialCapacity = s.snapshotInitialCapacity;
+            this.alertRules = s.alertRules;
+            this.alertSubscriber = s.alertSubscriber;
+            this.archiveDirectory = s.archiveDirectory;
+            this.archiveBlockSize = s.archiveBlockSize;
+            this.archiveMaxBlockAge = s.archiveMaxBlockAge;
+            this.deviceDirectory = s.deviceDirectory;
+            this.partitionMaxDevices = s.partitionMaxDevices;
+            this.partitionMaxMessagesPerSecond = s.partitionMaxMessagesPerSecond;
+            this.partitionCount = s.partitionCount;
+            this.supervisionMinBackoff = s.supervisionMinBackoff;
+            this.supervisionMaxBackoff = s.supervisionMaxBackoff;
+            this.supervisionRandomFactor = s.supervisionRandomFactor;
+            this.supervisionStashCapacity = s.supervisionStashCapacity;
+            this.restartCounters = s.restartCounters;
+        }
+    }
+
+    private DeviceSettings(Builder b) {
+        this.queryTimeout = b.queryTimeout;
+        this.allTemperaturesCacheTtl = b.allTemperaturesCacheTtl;
+        this.fleetQueryFanOut = b.fleetQueryFanOut;
+        this.admissionRatePerGroup = b.admissionRatePerGroup;
+        this.admissionBurst = b.admissionBurst;
+        this.maxGroupBacklog = b.maxGroupBacklog;
+        this.admissionBacklogTimeout = b.admissionBacklogTimeout;
+        this.snapshotDirectory = b.snapshotDirectory;
+        this.snapshotInterval = b.snapshotInterval;
+        this.snapshotInitialCapacity = b.snapshotInitialCapacity;
+        this.alertRules = b.alertRules;
+        this.alertSubscriber = b.alertSubscriber;
+        this.archiveDirectory = b.archiveDirectory;
+        this.archiveBlockSize = b.archiveBlockSize;
+        this.archiveMaxBlockAge = b.archiveMaxBlockAge;
+        this.deviceDirectory = b.deviceDirectory;
+        this.partitionMaxDevices = b.partitionMaxDevices;
+        this.partitionMaxMessagesPerSecond = b.partitionMaxMessagesPerSecond;
+        this.partitionCount = b.partitionCount;
+        this.supervisionMinBackoff = b.supervisionMinBackoff;
+        this.supervisionMaxBackoff = b.supervisionMaxBackoff;
+        this.supervisionRandomFactor = b.supervisionRandomFactor;
+        this.supervisionStashCapacity = b.supervisionStashCapacity;
+        this.restartCounters = b.restartCounters;
+    }
+
+    // 复制当前配置, 只应用change中的修改
+    private DeviceSettings copy(Consumer<Builder> change) {
+        Builder b = new Builder(this);
+        change.accept(b);
+        return new DeviceSettings(b);
+    }
+
+    public DeviceSettings withQueryTimeout(Duration queryTimeout) {
+        return copy(b -> b.queryTimeout = queryTimeout);
+    }
+
+    public DeviceSettings withAllTemperaturesCacheTtl(Duration allTemperaturesCacheTtl) {
+        return copy(b -> b.allTemperaturesCacheTtl = allTemperaturesCacheTtl);
+    }
+
+    public DeviceSettings withFleetQueryFanOut(int fleetQueryFanOut) {
+        return copy(b -> b.fleetQueryFanOut = fleetQueryFanOut);
+    }
+
+    public DeviceSettings withAdmission(double ratePerGroup, int burst, int maxGroupBacklog) {
+        return copy(b -> {
+            b.admissionRatePerGroup = ratePerGroup;
+            b.admissionBurst = burst;
+            b.maxGroupBacklog = maxGroupBacklog;
+        });
+    }
+
+    public DeviceSettings withAdmissionBacklogTimeout(Duration backlogTimeout) {
+        return copy(b -> b.admissionBacklogTimeout = backlogTimeout);
+    }
+
+    public DeviceSettings withSnapshots(Path directory, Duration interval) {
+        return copy(b -> {
+            b.snapshotDirectory = Optional.of(directory);
+            b.snapshotInterval = interval;
+        });
+    }
+
+    // 告警状态切换事件发给subscriber
+    public DeviceSettings withAlerts(List<AlertRule> rules, ActorRef<AlertEvent> subscriber) {
+        return copy(b -> {
+            b.alertRules = Collections.unmodifiableList(rules);
+            b.alertSubscriber = Optional.of(subscriber);
+        });
+    }
+
+    public DeviceSettings withArchive(Path directory, int blockSize, Duration maxBlockAge) {
+        return copy(b -> {
+            b.archiveDirectory = Optional.of(directory);
+            b.archiveBlockSize = blockSize;
+            b.archiveMaxBlockAge = maxBlockAge;
+        });
+    }
+
+    // 所有Group把各自的Device登记到同一个目录
+    public DeviceSettings withDeviceDirectory(DeviceDirectory directory) {
+        return copy(b -> b.deviceDirectory = Optional.of(directory));
+    }
+
+    public DeviceSettings withPartitioning(int maxDevices, int maxMessagesPerSecond, int count) {
+        return copy(b -> {
+            b.partitionMaxDevices = maxDevices;
+            b.partitionMaxMessagesPerSecond = maxMessagesPerSecond;
+            b.partitionCount = count;
+        });
+    }
+
+    public DeviceSettings withSupervision(Duration minBackoff, Duration maxBackoff, double randomFactor, int stashCapacity) {
+        return copy(b -> {
+            b.supervisionMinBackoff = minBackoff;
+            b.supervisionMaxBackoff = maxBackoff;
+            b.supervisionRandomFactor = randomFactor;
+            b.supervisionStashCapacity = stashCapacity;
+        });
+    }
+
+    // 所有Device和Group的重启都计入同一组计数器
+    public DeviceSettings withRestartCounters(RestartCounters counters) {
+        return copy(b -> b.restartCounters = Optional.of(counters));
+    }
+
+    // 不监督时原样返回, 异常会让actor停止; 重启时保留子actor, 由各actor自己决定保留哪些状态
+    <T> Behavior<T> supervise(Behavior<T> behavior) {
+        if (supervisionMinBackoff.isZero()) {
+            return behavior;
+        }
+        return Behaviors.supervise(behavior).onFailure(
+                SupervisorStrategy.restartWithBackoff(supervisionMinBackoff, supervisionMaxBackoff, supervisionRandomFactor)
+                        .withStashCapacity(supervisionStashCapacity)
+                        .withStopChildren(false));
+    }
+}
@@ -0,0 +1,189 @@
+package com.iot.devices;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * 一次性的跨Group温度查询actor.
+ * <p>
+ * Group数不超过fanOut时直接向每个Group发RequestAllTemperatures(叶子节点), 否则把Group分成fanOut份,
+ * 每份交给一个子FleetQuery, 形成一棵查询树, 单个actor需要处理的回复数不超过fanOut.
+ * 子节点的截止时间比父节点略短, 保证父节点截止前能收到子树的部分结果.
+ * <p>
+ * 每个Group的请求都发给DeviceManager转发, 与其他请求一样经过准入控制, 被拒绝的Group记入overloadedGroups.
+ */
+public class FleetQuery extends AbstractBehavior<FleetQuery.Command> {
+
+    public interface Command {}
+
+    private enum DeadlineReached implements Command {
+        INSTANCE
+    }
+
+    private static class WrappedGroupTemperatures implements Command {
+        final DeviceManager.RespondAllTemperatures response;
+
+        WrappedGroupTemperatures(DeviceManager.RespondAllTemperatures response) {
+            this.response = response;
+        }
+    }
+
+    private static class WrappedSubtreeResult implements Command {
+        final DeviceManager.RespondFleetTemperatures response;
+
+        WrappedSubtreeResult(DeviceManager.RespondFleetTemperatures response) {
+            this.response = response;
+        }
+    }
+
+    // 每一层子树的截止时间占父节点的比例
+    private static final double SUBTREE_DEADLINE_RATIO = 0.9;
+
+    public static Behavior<Command> create(
+            List<String> groupIds,
+            ActorRef<DeviceManager.Command> manager,
+            long requestId,
+            Duration deadline,
+            int fanOut,
+            Optional<ActorRef<DeviceManager.FleetTemperaturesResponse>> partialsTo,
+            ActorRef<DeviceManager.RespondFleetTemperatures> replyTo) {
+        return create(groupIds, manager, requestId, requestId, deadline, fanOut, partialsTo, replyTo);
+    }
+
+    // 子树回复父节点时用下标作requestId, 部分结果则始终带原始请求的requestId
+    private static Behavior<Command> create(
+            List<String> groupIds,
+            ActorRef<DeviceManager.Command> manager,
+            long requestId,
+            long originalRequestId,
+            Duration deadline,
+            int fanOut,
+            Optional<ActorRef<DeviceManager.FleetTemperaturesResponse>> partialsTo,
+            ActorRef<DeviceManager.RespondFleetTemperatures> replyTo) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new FleetQuery(context, timers, groupIds, manager, requestId, originalRequestId, deadline, fanOut,
+                        partialsTo, replyTo)));
+    }
+
+    private final long requestId;
+    private final long originalRequestId;
+    private final Optional<ActorRef<DeviceManager.FleetTemperaturesResponse>> partialsTo;
+    private final ActorRef<DeviceManager.RespondFleetTemperatures> replyTo;
+    private final Map<String, Map<String, DeviceManager.TemperatureReading>> results = new HashMap<>();
+    private final Set<String> timedOutGroups = new HashSet<>();
+    private final Set<String> overloadedGroups = new HashSet<>();
+    // 叶子节点: 下标即发给该Group的requestId
+    private final List<String> groupIds;
+    private final Set<String> pendingGroups = new HashSet<>();
+    // 非叶子节点: 子树下标 -> 该子树负责的Group
+    private final Map<Integer, Set<String>> pendingSubtrees = new HashMap<>();
+
+    private FleetQuery(
+            ActorContext<Command> context,
+            TimerScheduler<Command> timers,
+            List<String> groupIds,
+            ActorRef<DeviceManager.Command> manager,
+            long requestId,
+            long originalRequestId,
+            Duration deadline,
+            int fanOut,
+            Optional<ActorRef<DeviceManager.FleetTemperaturesResponse>> partialsTo,
+            ActorRef<DeviceManager.RespondFleetTemperatures> replyTo) {
+        super(context);
+        this.requestId = requestId;
+        this.originalRequestId = originalRequestId;
+        this.partialsTo = partialsTo;
+        this.replyTo = replyTo;
+        this.groupIds = new ArrayList<>(groupIds);
+
+        timers.startSingleTimer(DeadlineReached.INSTANCE, deadline);
+
+        if (groupIds.size() <= fanOut) {
+            ActorRef<DeviceManager.RespondAllTemperatures> adapter =
+                    context.messageAdapter(DeviceManager.RespondAllTemperatures.class, WrappedGroupTemperatures::new);
+            for (int i = 0; i < groupIds.size(); i++) {
+                String groupId = groupIds.get(i);
+                manager.tell(new DeviceManager.RequestAllTemperatures(i, groupId, adapter));
+                pendingGroups.add(groupId);
+            }
+        } else {
+            ActorRef<DeviceManager.RespondFleetTemperatures> adapter =
+                    context.messageAdapter(DeviceManager.RespondFleetTemperatures.class, WrappedSubtreeResult::new);
+            Duration subtreeDeadline = Duration.ofNanos((long) (deadline.toNanos() * SUBTREE_DEADLINE_RATIO));
+            int chunkSize = (groupIds.size() + fanOut - 1) / fanOut;
+            for (int index = 0, from = 0; from < groupIds.size(); index++, from += chunkSize) {
+                List<String> chunk = new ArrayList<>(groupIds.subList(from, Math.min(from + chunkSize, groupIds.size())));
+                pendingSubtrees.put(index, new HashSet<>(chunk));
+                context.spawnAnonymous(create(chunk, manager, index, originalRequestId, subtreeDeadline, fanOut,
+                        partialsTo, adapter));
+            }
+        }
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(WrappedGroupTemperatures.class, this::onGroupTemperatures)
+                .onMessage(WrappedSubtreeResult.class, this::onSubtreeResult)
+                .onMessage(DeadlineReached.class, m -> onDeadlineReached())
+                .build();
+    }
+
+    private Behavior<Command> onGroupTemperatures(WrappedGroupTemperatures wrapped) {
+        String groupId = groupIds.get((int) wrapped.response.requestId);
+        if (pendingGroups.remove(groupId)) {
+            if (wrapped.response.overloaded) {
+                overloadedGroups.add(groupId);
+                return respondWhenAllCollected();
+            }
+            results.put(groupId, wrapped.response.temperatures);
+            partialsTo.ifPresent(ref ->
+                    ref.tell(new DeviceManager.FleetTemperaturesPartial(originalRequestId, groupId, wrapped.response.temperatures)));
+        }
+        return respondWhenAllCollected();
+    }
+
+    private Behavior<Command> onSubtreeResult(WrappedSubtreeResult wrapped) {
+        if (pendingSubtrees.remove((int) wrapped.response.requestId) != null) {
+            results.putAll(wrapped.response.groups);
+            timedOutGroups.addAll(wrapped.response.timedOutGroups);
+            overloadedGroups.addAll(wrapped.response.overloadedGroups);
+        }
+        return respondWhenAllCollected();
+    }
+
+    private Behavior<Command> onDeadlineReached() {
+        timedOutGroups.addAll(pendingGroups);
+        pendingGroups.clear();
+        for (Set<String> subtreeGroups : pendingSubtrees.values()) {
+            timedOutGroups.addAll(subtreeGroups);
+        }
+        pendingSubtrees.clear();
+        return respondWhenAllCollected();
+    }
+
+    private Behavior<Command> respondWhenAllCollected() {
+        if (pendingGroups.isEmpty() && pendingSubtrees.isEmpty()) {
+            replyTo.tell(new DeviceManager.RespondFleetTemperatures(requestId,
+                    Collections.unmodifiableMap(results), Collections.unmodifiableSet(timedOutGroups),
+                    Collections.unmodifiableSet(overloadedGroups)));
+            return Behaviors.stopped();
+        }
+        return this;
+    }
+}
@@ -0,0 +1,113 @@
+package com.iot.devices;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 一次性的跨Group温度分布查询actor, 收集各Group的TemperatureSketch并合并.
+ * <p>
+ * 每个Group只回复几十个桶, 与设备数无关, 因此不像FleetQuery那样分层聚合.
+ * 每个Group的请求都发给DeviceManager转发, 经过准入控制, 被拒绝的Group记入overloadedGroups.
+ */
+public class FleetSketchQuery extends AbstractBehavior<FleetSketchQuery.Command> {
+
+    public interface Command {}
+
+    private enum DeadlineReached implements Command {
+        INSTANCE
+    }
+
+    private static class WrappedGroupSketch implements Command {
+        final DeviceManager.RespondTemperatureSketch response;
+
+        WrappedGroupSketch(DeviceManager.RespondTemperatureSketch response) {
+            this.response = response;
+        }
+    }
+
+    public static Behavior<Command> create(
+            List<String> groupIds,
+            ActorRef<DeviceManager.Command> manager,
+            long requestId,
+            Duration deadline,
+            ActorRef<DeviceManager.RespondFleetTemperatureSketch> replyTo) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new FleetSketchQuery(context, timers, groupIds, manager, requestId, deadline, replyTo)));
+    }
+
+    private final long requestId;
+    private final ActorRef<DeviceManager.RespondFleetTemperatureSketch> replyTo;
+    private final TemperatureSketch fleet = new TemperatureSketch();
+    private final Map<String, TemperatureSketch> results = new HashMap<>();
+    // 下标即发给该Group的requestId
+    private final List<String> groupIds;
+    private final Set<String> pendingGroups;
+    private final Set<String> overloadedGroups = new HashSet<>();
+
+    private FleetSketchQuery(
+            ActorContext<Command> context,
+            TimerScheduler<Command> timers,
+            List<String> groupIds,
+            ActorRef<DeviceManager.Command> manager,
+            long requestId,
+            Duration deadline,
+            ActorRef<DeviceManager.RespondFleetTemperatureSketch> replyTo) {
+        super(context);
+        this.requestId = requestId;
+        this.replyTo = replyTo;
+        this.groupIds = new ArrayList<>(groupIds);
+        this.pendingGroups = new HashSet<>(groupIds);
+
+        timers.startSingleTimer(DeadlineReached.INSTANCE, deadline);
+
+        ActorRef<DeviceManager.RespondTemperatureSketch> adapter =
+                context.messageAdapter(DeviceManager.RespondTemperatureSketch.class, WrappedGroupSketch::new);
+        for (int i = 0; i < groupIds.size(); i++) {
+            String groupId = groupIds.get(i);
+            manager.tell(new DeviceManager.RequestTemperatureSketch(i, groupId, adapter));
+        }
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(WrappedGroupSketch.class, this::onGroupSketch)
+                .onMessage(DeadlineReached.class, m -> respond())
+                .build();
+    }
+
+    private Behavior<Command> onGroupSketch(WrappedGroupSketch wrapped) {
+        String groupId = groupIds.get((int) wrapped.response.requestId);
+        if (pendingGroups.remove(groupId)) {
+            if (wrapped.response.overloaded) {
+                overloadedGroups.add(groupId);
+            } else {
+                results.put(groupId, wrapped.response.sketch);
+                fleet.merge(wrapped.response.sketch);
+            }
+        }
+        return pendingGroups.isEmpty() ? respond() : this;
+    }
+
+    // 截止时还没回复的Group记入timedOutGroups
+    private Behavior<Command> respond() {
+        replyTo.tell(new DeviceManager.RespondFleetTemperatureSketch(requestId, fleet.copy(),
+                Collections.unmodifiableMap(results), Collections.unmodifiableSet(pendingGroups),
+                Collections.unmodifiableSet(overloadedGroups)));
+        return Behaviors.stopped();
+    }
+}
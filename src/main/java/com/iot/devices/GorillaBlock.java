@@ -0,0 +1,209 @@
+package com.iot.devices;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 单个设备一段读数的压缩块, 编码方式参考Facebook Gorilla:
+ * <ul>
+ * <li>第一条读数的时间戳和值各原样写64位</li>
+ * <li>时间戳写delta-of-delta: 0写1位'0', 其余按范围写'10'+7位, '110'+9位, '1110'+12位或'1111'+64位</li>
+ * <li>值与上一条按位异或: 相同写'0'; 否则写'1', 有效位落在上一个窗口内时写'0'+窗口内的位,
+ *     否则写'1'+前导零个数(5位)+有效位数-1(6位)+有效位</li>
+ * </ul>
+ * 采样间隔固定、温度缓慢变化时, 每条读数通常只需要十几位.
+ */
+final class GorillaBlock {
+
+    private GorillaBlock() {
+    }
+
+    interface Visitor {
+        void reading(long timestampMillis, double value);
+    }
+
+    // 非线程安全, 由所属的Device独占, 封存后交给ReadingArchive.Writer只读使用
+    static final class Encoder {
+        private byte[] bytes = new byte[64];
+        private int bitLength;
+        private int count;
+        private long firstTimestamp;
+        private long minTimestamp;
+        private long maxTimestamp;
+        private long lastTimestamp;
+        private long lastDelta;
+        private long lastValueBits;
+        // -1表示还没有可复用的有效位窗口
+        private int lastLeading = -1;
+        private int lastTrailing;
+
+        void append(long timestampMillis, double value) {
+            long valueBits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                writeBits(timestampMillis, 64);
+                writeBits(valueBits, 64);
+                firstTimestamp = timestampMillis;
+                minTimestamp = timestampMillis;
+                maxTimestamp = timestampMillis;
+            } else {
+                long delta = timestampMillis - lastTimestamp;
+                writeDeltaOfDelta(delta - lastDelta);
+                lastDelta = delta;
+                writeXor(valueBits ^ lastValueBits);
+                minTimestamp = Math.min(minTimestamp, timestampMillis);
+                maxTimestamp = Math.max(maxTimestamp, timestampMillis);
+            }
+            lastTimestamp = timestampMillis;
+            lastValueBits = valueBits;
+            count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        long firstTimestamp() {
+            return firstTimestamp;
+        }
+
+        long minTimestamp() {
+            return minTimestamp;
+        }
+
+        long maxTimestamp() {
+            return maxTimestamp;
+        }
+
+        int byteLength() {
+            return (bitLength + 7) >>> 3;
+        }
+
+        void writeTo(ByteBuffer out) {
+            out.put(bytes, 0, byteLength());
+        }
+
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0) {
+                writeBits(0b0, 1);
+            } else if (dod >= -63 && dod <= 64) {
+                writeBits(0b10, 2);
+                writeBits(dod + 63, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                writeBits(0b110, 3);
+                writeBits(dod + 255, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                writeBits(0b1110, 4);
+                writeBits(dod + 2047, 12);
+            } else {
+                writeBits(0b1111, 4);
+                writeBits(dod, 64);
+            }
+        }
+
+        private void writeXor(long xor) {
+            if (xor == 0) {
+                writeBits(0b0, 1);
+                return;
+            }
+            // 前导零个数只有5位, 超过31的部分算作有效位
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+                writeBits(0b10, 2);
+                writeBits(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+            } else {
+                int meaningful = 64 - leading - trailing;
+                writeBits(0b11, 2);
+                writeBits(leading, 5);
+                writeBits(meaningful - 1, 6);
+                writeBits(xor >>> trailing, meaningful);
+                lastLeading = leading;
+                lastTrailing = trailing;
+            }
+        }
+
+        // 按从高到低的顺序写入value的低n位
+        private void writeBits(long value, int n) {
+            int needed = (bitLength + n + 7) >>> 3;
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+            while (n > 0) {
+                int free = 8 - (bitLength & 7);
+                int take = Math.min(free, n);
+                int chunk = (int) (value >>> (n - take)) & ((1 << take) - 1);
+                bytes[bitLength >>> 3] |= (byte) (chunk << (free - take));
+                bitLength += take;
+                n -= take;
+            }
+        }
+    }
+
+    // 从payload的当前position开始解码count条读数, 不修改payload的position
+    static void decode(ByteBuffer payload, int count, Visitor visitor) {
+        if (count == 0) {
+            return;
+        }
+        BitReader in = new BitReader(payload);
+        long timestamp = in.readBits(64);
+        long valueBits = in.readBits(64);
+        visitor.reading(timestamp, Double.longBitsToDouble(valueBits));
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            long dod;
+            if (in.readBit() == 0) {
+                dod = 0;
+            } else if (in.readBit() == 0) {
+                dod = in.readBits(7) - 63;
+            } else if (in.readBit() == 0) {
+                dod = in.readBits(9) - 255;
+            } else if (in.readBit() == 0) {
+                dod = in.readBits(12) - 2047;
+            } else {
+                dod = in.readBits(64);
+            }
+            delta += dod;
+            timestamp += delta;
+
+            if (in.readBit() == 1) {
+                if (in.readBit() == 1) {
+                    leading = (int) in.readBits(5);
+                    int meaningful = (int) in.readBits(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                valueBits ^= in.readBits(64 - leading - trailing) << trailing;
+            }
+            visitor.reading(timestamp, Double.longBitsToDouble(valueBits));
+        }
+    }
+
+    private static final class BitReader {
+        private final ByteBuffer buffer;
+        private final int start;
+        private long position;
+
+        BitReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.start = buffer.position();
+        }
+
+        int readBit() {
+            return (int) readBits(1);
+        }
+
+        long readBits(int n) {
+            long value = 0;
+            while (n > 0) {
+                int available = 8 - (int) (position & 7);
+                int take = Math.min(available, n);
+                int b = buffer.get(start + (int) (position >>> 3)) & 0xFF;
+                value = (value << take) | ((b >>> (available - take)) & ((1 << take) - 1));
+                position += take;
+                n -= take;
+            }
+            return value;
+        }
+    }
+}
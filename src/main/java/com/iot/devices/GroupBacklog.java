@@ -0,0 +1,47 @@
+package com.iot.devices;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 已准入但Group还没处理的请求数, DeviceManager准入时加一, Group处理时减一.
+ * <p>
+ * Group退避重启期间暂存溢出的消息会被直接丢弃, 永远不会被处理, 只靠加减计数会一直偏大, 让Group始终被限流.
+ * 因此计数不为0时如果超过timeout没有处理任何请求, 就认为之前计入的请求已经丢失, 由DeviceManager清零重新计数;
+ * 清零前准入、之后才处理的请求不会把计数减到0以下.
+ */
+final class GroupBacklog {
+
+    private final long timeoutNanos;
+    private final AtomicInteger size = new AtomicInteger();
+    // 最近一次处理请求, 或计数从0开始增加的时间
+    private volatile long lastProgressNanos;
+
+    GroupBacklog(Duration timeout) {
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    void admitted(long nowNanos) {
+        if (size.getAndIncrement() == 0) {
+            lastProgressNanos = nowNanos;
+        }
+    }
+
+    void processed(long nowNanos) {
+        lastProgressNanos = nowNanos;
+        size.updateAndGet(n -> n > 0 ? n - 1 : 0);
+    }
+
+    // 计数不为0, 且超过timeout没有处理任何请求
+    boolean expired(long nowNanos) {
+        return size.get() > 0 && nowNanos - lastProgressNanos >= timeoutNanos;
+    }
+
+    void reset() {
+        size.set(0);
+    }
+}
@@ -0,0 +1,313 @@
+package com.iot.devices;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个Group的历史读数归档, 只追加写入. 每个Device把自己的读数编码成GorillaBlock, 封存后交给Writer异步写入.
+ * <p>
+ * 布局(大端):
+ * <pre>
+ * header 8字节: magic(int) version(int)
+ * block:        length(int, 不含自身) minTimestamp(long) maxTimestamp(long) count(int)
+ *               idLength(short) deviceId(UTF-8) payload(GorillaBlock)
+ * </pre>
+ * 块按封存顺序排列, 时间范围可能重叠. 读者先读块头, 与查询范围不相交的块整块跳过.
+ * 进程崩溃留下的不完整尾块会被读者忽略, 并在Writer重新打开时截掉.
+ */
+public final class ReadingArchive {
+
+    static final int MAGIC = 0x49415243;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    // length之后的固定部分: minTimestamp maxTimestamp count idLength
+    private static final int BLOCK_HEADER_SIZE = 8 + 8 + 4 + 2;
+    // 一个Writer每次占用共享线程最多写入的块数, 之后让出线程给其他Group
+    private static final int BLOCKS_PER_DRAIN = 64;
+
+    // 所有Group的Writer共用, 线程数有上限, 空闲时线程退出
+    private static final Executor WRITE_EXECUTOR = newWriteExecutor();
+
+    private static Executor newWriteExecutor() {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        AtomicInteger nextThread = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "reading-archive-" + nextThread.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private ReadingArchive() {
+    }
+
+    public static Path fileFor(Path directory, String groupId) {
+        return directory.resolve(groupId + ".archive");
+    }
+
+    public interface Visitor {
+        void reading(String deviceId, long timestampMillis, double value);
+    }
+
+    /**
+     * 单个Group共用一个Writer, 可以被多个Device并发调用. 块先进入Writer自己的队列, 由共享线程池按提交顺序写入,
+     * 同一时刻最多只有一个线程在写同一个文件.
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final Executor executor;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        // 已经有drain提交给executor或正在执行
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closing;
+        private final AtomicLong failedBlocks = new AtomicLong();
+        // 只在drain中访问, scheduled保证前后两次drain之间的可见性
+        private long position;
+
+        Writer(Path file) throws IOException {
+            this(file, WRITE_EXECUTOR);
+        }
+
+        Writer(Path file, Executor executor) throws IOException {
+            this.executor = executor;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                writeFully(header, 0);
+                position = HEADER_SIZE;
+            } else {
+                checkHeader(channel);
+                position = endOfCompleteBlocks(channel);
+                channel.truncate(position);
+            }
+        }
+
+        // block的所有权交给Writer, 调用方之后不能再修改它
+        void append(String deviceId, GorillaBlock.Encoder block) {
+            if (closing) {
+                failedBlocks.incrementAndGet();
+                return;
+            }
+            pending.add(() -> write(deviceId, block));
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        // 先清除scheduled再检查队列, drain期间加入的块不会没人处理
+        private void drain() {
+            for (int i = 0; i < BLOCKS_PER_DRAIN; i++) {
+                Runnable next = pending.poll();
+                if (next == null) {
+                    break;
+                }
+                next.run();
+            }
+            scheduled.set(false);
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+
+        long failedBlocks() {
+            return failedBlocks.get();
+        }
+
+        private void write(String deviceId, GorillaBlock.Encoder block) {
+            byte[] id = deviceId.getBytes(StandardCharsets.UTF_8);
+            int length = BLOCK_HEADER_SIZE + id.length + block.byteLength();
+            ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+            buffer.putInt(length)
+                    .putLong(block.minTimestamp())
+                    .putLong(block.maxTimestamp())
+                    .putInt(block.count())
+                    .putShort((short) id.length)
+                    .put(id);
+            block.writeTo(buffer);
+            buffer.flip();
+            try {
+                writeFully(buffer, position);
+                position += buffer.limit();
+            } catch (IOException e) {
+                failedBlocks.incrementAndGet();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer, long at) throws IOException {
+            long offset = at;
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+        }
+
+        // 等已提交的块全部写完再关闭, 之后提交的块计入failedBlocks
+        @Override
+        public void close() throws IOException {
+            closing = true;
+            CompletableFuture<Void> drained = new CompletableFuture<>();
+            pending.add(() -> drained.complete(null));
+            schedule();
+            try {
+                drained.get(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // 超时后仍在队列中的块不再等待
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 范围扫描的读者, 通过FileChannel按块顺序读取, 不会一次把整个文件读进内存. 非线程安全.
+     */
+    public static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer blockHeader = ByteBuffer.allocate(4 + BLOCK_HEADER_SIZE);
+        private ByteBuffer body = ByteBuffer.allocate(4096);
+
+        public static Reader open(Path file) throws IOException {
+            return new Reader(file);
+        }
+
+        private Reader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            checkHeader(channel);
+        }
+
+        /**
+         * 按块的写入顺序访问时间戳在[fromMillis, toMillis]内的读数, deviceId为空表示所有设备.
+         *
+         * @return 访问的读数条数
+         */
+        public long scan(Optional<String> deviceId, long fromMillis, long toMillis, Visitor visitor) throws IOException {
+            long size = channel.size();
+            long position = HEADER_SIZE;
+            long[] visited = new long[1];
+            while (position + blockHeader.capacity() <= size) {
+                blockHeader.clear();
+                if (!readFully(blockHeader, position)) {
+                    break;
+                }
+                blockHeader.flip();
+                int length = blockHeader.getInt();
+                long minTimestamp = blockHeader.getLong();
+                long maxTimestamp = blockHeader.getLong();
+                int count = blockHeader.getInt();
+                int idLength = blockHeader.getShort() & 0xFFFF;
+                long next = position + 4 + length;
+                if (next > size) {
+                    // 不完整的尾块
+                    break;
+                }
+                if (maxTimestamp >= fromMillis && minTimestamp <= toMillis) {
+                    int bodyLength = length - BLOCK_HEADER_SIZE;
+                    if (body.capacity() < bodyLength) {
+                        body = ByteBuffer.allocate(Math.max(bodyLength, body.capacity() * 2));
+                    }
+                    // 先只读deviceId, 不是要找的设备就不读payload
+                    body.clear().limit(idLength);
+                    if (!readFully(body, position + blockHeader.capacity())) {
+                        break;
+                    }
+                    String id = new String(body.array(), 0, idLength, StandardCharsets.UTF_8);
+                    if (!deviceId.isPresent() || deviceId.get().equals(id)) {
+                        body.limit(bodyLength);
+                        if (!readFully(body, position + blockHeader.capacity() + idLength)) {
+                            break;
+                        }
+                        body.position(idLength);
+                        GorillaBlock.decode(body, count, (timestamp, value) -> {
+                            if (timestamp >= fromMillis && timestamp <= toMillis) {
+                                visited[0]++;
+                                visitor.reading(id, timestamp, value);
+                            }
+                        });
+                    }
+                }
+                position = next;
+            }
+            return visited[0];
+        }
+
+        private boolean readFully(ByteBuffer buffer, long at) throws IOException {
+            long offset = at;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset);
+                if (read < 0) {
+                    return false;
+                }
+                offset += read;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static void checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new EOFException("Truncated reading archive header");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a reading archive file");
+        }
+    }
+
+    // 最后一个完整块的结尾
+    private static long endOfCompleteBlocks(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = HEADER_SIZE;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length.clear();
+            while (length.hasRemaining()) {
+                if (channel.read(length, position + length.position()) < 0) {
+                    return position;
+                }
+            }
+            long next = position + 4 + length.getInt(0);
+            if (next > size) {
+                break;
+            }
+            position = next;
+        }
+        return position;
+    }
+}
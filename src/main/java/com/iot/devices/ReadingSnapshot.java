@@ -0,0 +1,251 @@
+package com.iot.devices;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 一个Group最新读数的内存映射快照文件, 由DeviceGroup定期写入, 进程外的监控程序只读访问.
+ * <p>
+ * 布局(大端):
+ * <pre>
+ * header 64字节: magic(int) version(int) sequence(long) publishedAtMillis(long) count(int) capacity(int) crc32(long)
+ * slot   64字节: status(byte) idLength(byte) deviceId(54字节UTF-8) value(double)
+ * </pre>
+ * sequence按seqlock方式使用: 写入期间为奇数, 写完后为偶数. Java 8的MappedByteBuffer没有内存屏障,
+ * 所以header里还带了count/publishedAtMillis/所有slot的CRC32, 读者只接受sequence前后一致且校验通过的快照.
+ */
+public final class ReadingSnapshot {
+
+    static final int MAGIC = 0x49534E50;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 64;
+    static final int MAX_DEVICE_ID_BYTES = 54;
+
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int PUBLISHED_AT_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+    private static final int CAPACITY_OFFSET = 28;
+    private static final int CRC_OFFSET = 32;
+
+    private static final byte TEMPERATURE = 0;
+    private static final byte TEMPERATURE_NOT_AVAILABLE = 1;
+    private static final byte DEVICE_NOT_AVAILABLE = 2;
+    private static final byte DEVICE_TIMED_OUT = 3;
+
+    private ReadingSnapshot() {
+    }
+
+    public static Path fileFor(Path directory, String groupId) {
+        return directory.resolve(groupId + ".snapshot");
+    }
+
+    // 读到的一份完整快照
+    public static final class Snapshot {
+        public final long sequence;
+        public final long publishedAtMillis;
+        public final Map<String, DeviceManager.TemperatureReading> readings;
+
+        Snapshot(long sequence, long publishedAtMillis, Map<String, DeviceManager.TemperatureReading> readings) {
+            this.sequence = sequence;
+            this.publishedAtMillis = publishedAtMillis;
+            this.readings = readings;
+        }
+    }
+
+    // 单写者, 只由所属的DeviceGroup调用
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int capacity;
+        private long sequence;
+
+        Writer(Path file, int initialCapacity) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            map(Math.max(1, initialCapacity));
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            publish(Collections.emptyMap(), System.currentTimeMillis());
+        }
+
+        private void map(int newCapacity) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+            capacity = newCapacity;
+        }
+
+        // 返回因deviceId过长而未写入的设备数
+        int publish(Map<String, DeviceManager.TemperatureReading> readings, long nowMillis) throws IOException {
+            if (readings.size() > capacity) {
+                // 扩容只是把文件变长, 已映射的读者会在下次读取时发现capacity变化并重新映射
+                map(Math.max(readings.size(), capacity * 2));
+            }
+            buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+
+            int count = 0;
+            int skipped = 0;
+            for (Map.Entry<String, DeviceManager.TemperatureReading> entry : readings.entrySet()) {
+                byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (id.length > MAX_DEVICE_ID_BYTES) {
+                    skipped++;
+                    continue;
+                }
+                int offset = HEADER_SIZE + count * SLOT_SIZE;
+                DeviceManager.TemperatureReading reading = entry.getValue();
+                buffer.put(offset, statusOf(reading));
+                buffer.put(offset + 1, (byte) id.length);
+                for (int i = 0; i < id.length; i++) {
+                    buffer.put(offset + 2 + i, id[i]);
+                }
+                buffer.putDouble(offset + 2 + MAX_DEVICE_ID_BYTES,
+                        reading instanceof DeviceManager.Temperature ? ((DeviceManager.Temperature) reading).value : 0.0);
+                count++;
+            }
+            buffer.putLong(PUBLISHED_AT_OFFSET, nowMillis);
+            buffer.putInt(COUNT_OFFSET, count);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.putLong(CRC_OFFSET, checksum(buffer, nowMillis, count));
+
+            buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * 进程外读者. 非线程安全, 每个线程各自open一个.
+     */
+    public static final class Reader implements Closeable {
+        private static final int MAX_ATTEMPTS = 10_000;
+
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        public static Reader open(Path file) throws IOException {
+            return new Reader(file);
+        }
+
+        private Reader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            remap();
+        }
+
+        private void remap() throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a reading snapshot file");
+            }
+        }
+
+        /**
+         * 读取最近一次完整发布的快照, 遇到写入中的快照会重试.
+         *
+         * @throws IllegalStateException 多次重试后仍没有读到一致的快照
+         */
+        public Snapshot read() throws IOException {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                long before = buffer.getLong(SEQUENCE_OFFSET);
+                if ((before & 1L) != 0L) {
+                    Thread.yield();
+                    continue;
+                }
+                int capacity = buffer.getInt(CAPACITY_OFFSET);
+                if (HEADER_SIZE + (long) capacity * SLOT_SIZE > buffer.capacity()) {
+                    remap();
+                    continue;
+                }
+                long publishedAt = buffer.getLong(PUBLISHED_AT_OFFSET);
+                int count = Math.min(buffer.getInt(COUNT_OFFSET), capacity);
+                long crc = buffer.getLong(CRC_OFFSET);
+                ByteBuffer slots = ByteBuffer.allocate(Math.max(0, count) * SLOT_SIZE);
+                ByteBuffer source = buffer.duplicate();
+                source.position(HEADER_SIZE);
+                source.limit(HEADER_SIZE + slots.capacity());
+                slots.put(source);
+                long after = buffer.getLong(SEQUENCE_OFFSET);
+                if (before != after || checksum(slots, 0, publishedAt, count) != crc) {
+                    Thread.yield();
+                    continue;
+                }
+                return new Snapshot(after, publishedAt, decode(slots, count));
+            }
+            throw new IllegalStateException("Snapshot kept changing while reading");
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static byte statusOf(DeviceManager.TemperatureReading reading) {
+        if (reading instanceof DeviceManager.Temperature) {
+            return TEMPERATURE;
+        } else if (reading == DeviceManager.TemperatureNotAvailable.INSTANCE) {
+            return TEMPERATURE_NOT_AVAILABLE;
+        } else if (reading == DeviceManager.DeviceNotAvailable.INSTANCE) {
+            return DEVICE_NOT_AVAILABLE;
+        } else {
+            return DEVICE_TIMED_OUT;
+        }
+    }
+
+    private static DeviceManager.TemperatureReading readingOf(byte status, double value) {
+        switch (status) {
+            case TEMPERATURE:
+                return new DeviceManager.Temperature(value);
+            case TEMPERATURE_NOT_AVAILABLE:
+                return DeviceManager.TemperatureNotAvailable.INSTANCE;
+            case DEVICE_NOT_AVAILABLE:
+                return DeviceManager.DeviceNotAvailable.INSTANCE;
+            default:
+                return DeviceManager.DeviceTimedOut.INSTANCE;
+        }
+    }
+
+    private static Map<String, DeviceManager.TemperatureReading> decode(ByteBuffer slots, int count) {
+        Map<String, DeviceManager.TemperatureReading> readings = new HashMap<>();
+        byte[] id = new byte[MAX_DEVICE_ID_BYTES];
+        for (int i = 0; i < count; i++) {
+            int offset = i * SLOT_SIZE;
+            byte status = slots.get(offset);
+            int idLength = slots.get(offset + 1);
+            for (int j = 0; j < idLength; j++) {
+                id[j] = slots.get(offset + 2 + j);
+            }
+            double value = slots.getDouble(offset + 2 + MAX_DEVICE_ID_BYTES);
+            readings.put(new String(id, 0, idLength, StandardCharsets.UTF_8), readingOf(status, value));
+        }
+        return Collections.unmodifiableMap(readings);
+    }
+
+    private static long checksum(MappedByteBuffer buffer, long publishedAt, int count) {
+        return checksum(buffer, HEADER_SIZE, publishedAt, count);
+    }
+
+    private static long checksum(ByteBuffer buffer, int slotsOffset, long publishedAt, int count) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putLong(publishedAt).putInt(count).flip();
+        crc.update(header);
+        ByteBuffer slots = buffer.duplicate();
+        slots.position(slotsOffset);
+        slots.limit(slotsOffset + Math.max(0, count) * SLOT_SIZE);
+        crc.update(slots);
+        return crc.getValue();
+    }
+}
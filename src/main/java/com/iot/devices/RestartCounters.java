@@ -0,0 +1,28 @@
+package com.iot.devices;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Device和DeviceGroup(包括分区)被监督重启的累计次数, 通过DeviceSettings.withRestartCounters传入, 可在actor之外读取.
+ */
+public final class RestartCounters {
+
+    private final AtomicLong deviceRestarts = new AtomicLong();
+    private final AtomicLong groupRestarts = new AtomicLong();
+
+    public long deviceRestarts() {
+        return deviceRestarts.get();
+    }
+
+    public long groupRestarts() {
+        return groupRestarts.get();
+    }
+
+    void deviceRestarted() {
+        deviceRestarts.incrementAndGet();
+    }
+
+    void groupRestarted() {
+        groupRestarts.incrementAndGet();
+    }
+}
@@ -0,0 +1,205 @@
+package com.iot.devices;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * 可合并的温度分位数sketch, 按DDSketch的方式把读数映射到对数桶, 每个桶只记录个数.
+ * <p>
+ * 桶边界按1%的相对精度划分, 估计的分位数与真实值的相对误差不超过1%; 绝对值小于0.01的读数都计入0桶.
+ * 所有sketch使用相同的桶边界, 因此Group之间可以直接按桶相加合并, 也可以在设备读数变化时删除旧值.
+ * 桶连续存放, 读数集中在几十度的范围内时只有几十个桶.
+ * 读数跨过0度时正负两侧之间的空桶有几百个, 因此copy()在更省空间时只保存非空桶的key和个数,
+ * 之后再加入或删除读数时才转回连续存放.
+ * <p>
+ * 非线程安全. 作为消息发出的都是copy()得到的副本, 发出后不再修改.
+ */
+public final class TemperatureSketch {
+
+    static final double RELATIVE_ACCURACY = 0.01;
+    static final double MIN_INDEXABLE = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    // 第一个正桶(key为1)对应的对数下标
+    private static final int MIN_INDEX = (int) Math.ceil(Math.log(MIN_INDEXABLE) / LOG_GAMMA);
+
+    // 连续存放时counts[i]是key为offset + i的桶的读数个数;
+    // keys不为空时只存非空桶, counts[i]是key为keys[i]的桶的读数个数, keys升序
+    private int[] counts = new int[0];
+    private int offset;
+    private int[] keys;
+    private long count;
+
+    public TemperatureSketch() {
+    }
+
+    private TemperatureSketch(int[] counts, int offset, int[] keys, long count) {
+        this.counts = counts;
+        this.offset = offset;
+        this.keys = keys;
+        this.count = count;
+    }
+
+    /**
+     * 读数所在的桶. 负数读数的key为负, key的大小顺序与读数一致.
+     */
+    static int keyOf(double value) {
+        double abs = Math.abs(value);
+        if (!(abs >= MIN_INDEXABLE)) {
+            return 0;
+        }
+        // 无穷大计入最大的桶
+        int key = (int) Math.ceil(Math.log(Math.min(abs, Double.MAX_VALUE)) / LOG_GAMMA) - MIN_INDEX + 1;
+        return value > 0 ? key : -key;
+    }
+
+    // 桶(gamma^(i-1), gamma^i]中相对误差最小的代表值
+    static double valueOf(int key) {
+        if (key == 0) {
+            return 0.0;
+        }
+        double value = 2 * Math.pow(GAMMA, Math.abs(key) + MIN_INDEX - 1) / (GAMMA + 1);
+        return key > 0 ? value : -value;
+    }
+
+    public void add(double value) {
+        addKey(keyOf(value));
+    }
+
+    void addKey(int key) {
+        // 先扩展再取counts, indexOf可能替换数组
+        densify();
+        int i = indexOf(key);
+        counts[i]++;
+        count++;
+    }
+
+    private int keyAt(int i) {
+        return keys != null ? keys[i] : offset + i;
+    }
+
+    // 只存非空桶时转回连续存放
+    private void densify() {
+        if (keys == null) {
+            return;
+        }
+        int[] sparseKeys = keys;
+        int[] sparseCounts = counts;
+        keys = null;
+        // copy()不会产生没有桶的稀疏副本
+        offset = sparseKeys[0];
+        counts = new int[sparseKeys[sparseKeys.length - 1] - offset + 1];
+        for (int i = 0; i < sparseKeys.length; i++) {
+            counts[sparseKeys[i] - offset] = sparseCounts[i];
+        }
+    }
+
+    // 需要时扩展桶数组使其覆盖key
+    private int indexOf(int key) {
+        if (counts.length == 0) {
+            counts = new int[1];
+            offset = key;
+        } else if (key < offset) {
+            int[] grown = new int[counts.length + offset - key];
+            System.arraycopy(counts, 0, grown, offset - key, counts.length);
+            counts = grown;
+            offset = key;
+        } else if (key >= offset + counts.length) {
+            counts = Arrays.copyOf(counts, key - offset + 1);
+        }
+        return key - offset;
+    }
+
+    // 删除一个之前加入过的读数
+    void removeKey(int key) {
+        densify();
+        int i = key - offset;
+        if (i >= 0 && i < counts.length && counts[i] > 0) {
+            counts[i]--;
+            count--;
+        }
+    }
+
+    public void merge(TemperatureSketch other) {
+        densify();
+        for (int i = 0; i < other.counts.length; i++) {
+            int n = other.counts[i];
+            if (n > 0) {
+                int index = indexOf(other.keyAt(i));
+                counts[index] += n;
+                count += n;
+            }
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * q分位数(0到1)的估计值, 没有读数时为空.
+     */
+    public Optional<Double> quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+        }
+        if (count == 0) {
+            return Optional.empty();
+        }
+        long rank = (long) (q * (count - 1));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                return Optional.of(valueOf(keyAt(i)));
+            }
+        }
+        return Optional.of(valueOf(keyAt(counts.length - 1)));
+    }
+
+    // 去掉两端的空桶; 只存非空桶更省空间时改为只存非空桶
+    public TemperatureSketch copy() {
+        if (keys != null) {
+            return new TemperatureSketch(counts.clone(), 0, keys.clone(), count);
+        }
+        int from = 0;
+        int to = counts.length;
+        int nonEmpty = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                if (nonEmpty == 0) {
+                    from = i;
+                }
+                to = i + 1;
+                nonEmpty++;
+            }
+        }
+        if (nonEmpty == 0) {
+            return new TemperatureSketch();
+        }
+        if (2 * nonEmpty >= to - from) {
+            return new TemperatureSketch(Arrays.copyOfRange(counts, from, to), offset + from, null, count);
+        }
+        int[] sparseKeys = new int[nonEmpty];
+        int[] sparseCounts = new int[nonEmpty];
+        int j = 0;
+        for (int i = from; i < to; i++) {
+            if (counts[i] > 0) {
+                sparseKeys[j] = offset + i;
+                sparseCounts[j] = counts[i];
+                j++;
+            }
+        }
+        return new TemperatureSketch(sparseCounts, 0, sparseKeys, count);
+    }
+
+    // 保存桶所用的int个数
+    int storedInts() {
+        return keys != null ? 2 * counts.length : counts.length;
+    }
+
+    @Override
+    public String toString() {
+        return "TemperatureSketch{count=" + count + ", buckets=" + counts.length + (keys != null ? ", sparse" : "") + '}';
+    }
+}
@@ -6,6 +6,9 @@ import akka.actor.typed.ActorRef;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 //#definition
 public class AkkaQuickstartTest {
 
@@ -20,4 +23,44 @@ public class AkkaQuickstartTest {
         underTest.tell(new Greeter.Greet("Charles", testProbe.getRef()));
         testProbe.expectMessage(new Greeter.Greeted("Charles", underTest));
     }
+
+    @Test
+    public void testConsistentHashPoolRoutesSameNameToSameGreeter() {
+        TestProbe<Greeter.Greeted> testProbe = testKit.createTestProbe();
+        ActorRef<Greeter.Greet> pool =
+                testKit.spawn(GreeterMain.greeterPool(4, GreeterMain.Routing.CONSISTENT_HASH), "greeter-pool");
+        pool.tell(new Greeter.Greet("Charles", testProbe.getRef()));
+        Greeter.Greeted first = testProbe.receiveMessage();
+        for (int i = 0; i < 10; i++) {
+            pool.tell(new Greeter.Greet("Charles", testProbe.getRef()));
+            assertEquals(first.from, testProbe.receiveMessage().from);
+        }
+    }
+
+    @Test
+    public void testGreeterBotCountsEachConversationSeparately() {
+        TestProbe<Greeter.Greet> greeterProbe = testKit.createTestProbe();
+        ActorRef<Greeter.Greeted> bot = testKit.spawn(GreeterBot.create(3));
+        // 两轮同名的对话交替进行, 各自往返3次
+        for (int round = 0; round < 2; round++) {
+            for (long conversationId = 1; conversationId <= 2; conversationId++) {
+                bot.tell(new Greeter.Greeted(conversationId, "Charles", greeterProbe.getRef()));
+                Greeter.Greet greet = greeterProbe.receiveMessage();
+                assertEquals(conversationId, greet.conversationId);
+                assertEquals("Charles", greet.whom);
+            }
+        }
+        bot.tell(new Greeter.Greeted(1L, "Charles", greeterProbe.getRef()));
+        bot.tell(new Greeter.Greeted(2L, "Charles", greeterProbe.getRef()));
+        greeterProbe.expectNoMessage();
+    }
+
+    @Test
+    public void testPingPongBenchmarkCompletesAllRoundTrips() {
+        GreeterBenchmark.Result result = GreeterBenchmark.run("fork-join-executor", 5, 3, 50);
+        assertEquals(300L, result.messages());
+        // 每对的第一次往返不计时
+        assertEquals(3L * 49, result.latency.count());
+        assertTrue(result.latency.percentile(0.5) <= result.latency.percentile(0.99));
+    }
 }
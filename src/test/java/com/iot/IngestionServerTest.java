@@ -0,0 +1,80 @@
+package com.iot;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.typed.ActorRef;
+import com.iot.devices.DeviceManager;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class IngestionServerTest {
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    @Test
+    public void testIngestBinaryAndJsonBatchesOverHttp() throws Exception {
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        try (IngestionServer server = IngestionServer.start(testKit.system(), manager, 0);
+             IotClient client = IotClient.create(testKit.system(), manager)) {
+            URL url = new URL("http://127.0.0.1:" + server.address().getPort() + IngestionServer.PATH);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            ReadingCodec.writeBinaryHeader(out);
+            ReadingCodec.writeBinaryGroup(out, "http", Arrays.asList("device1", "device2"), new double[]{1.0, 2.0});
+            assertEquals(200, post(url, "application/octet-stream", bytes.toByteArray()));
+
+            // 未知字段被忽略, 后到的读数覆盖先到的
+            String json = "[{\"groupId\": \"http\", \"deviceId\": \"device2\", \"value\": -3.5e1, \"meta\": {\"unit\": [\"C\"]}},"
+                    + " {\"deviceId\": \"device\\u0033\", \"groupId\": \"http\", \"value\": 4}]";
+            assertEquals(200, post(url, "application/json", json.getBytes(StandardCharsets.UTF_8)));
+            assertEquals(400, post(url, "application/json", "[{\"groupId\": \"http\"}]".getBytes(StandardCharsets.UTF_8)));
+
+            Map<String, DeviceManager.TemperatureReading> expected = new HashMap<>();
+            expected.put("device1", new DeviceManager.Temperature(1.0));
+            expected.put("device2", new DeviceManager.Temperature(-35.0));
+            expected.put("device3", new DeviceManager.Temperature(4.0));
+            assertEquals(expected, client.allTemperatures("http").toCompletableFuture().get(3, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testRejectMalformedUtfInBinaryBatch() throws Exception {
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        try (IngestionServer server = IngestionServer.start(testKit.system(), manager, 0)) {
+            URL url = new URL("http://127.0.0.1:" + server.address().getPort() + IngestionServer.PATH);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            ReadingCodec.writeBinaryHeader(out);
+            // 长度为2的groupId, 0xFF不是合法的modified UTF-8
+            out.writeShort(2);
+            out.write(new byte[]{(byte) 0xFF, 'g'});
+            out.writeInt(0);
+            assertEquals(400, post(url, "application/octet-stream", bytes.toByteArray()));
+        }
+    }
+
+    private static int post(URL url, String contentType, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", contentType);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return connection.getResponseCode();
+    }
+}
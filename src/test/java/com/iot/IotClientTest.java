@@ -0,0 +1,99 @@
+package com.iot;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import com.iot.devices.Device;
+import com.iot.devices.DeviceManager;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class IotClientTest {
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    @Test
+    public void testClientBatchesRecordsAndCompletesQueries() throws Exception {
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        IotClient client = IotClient.create(testKit.system(), manager, Duration.ofSeconds(3), 2, Duration.ofSeconds(10));
+
+        // 同一批次的记录共用一个future, 攒满两条即发送
+        CompletableFuture<Void> first = client.recordTemperature("group", "device1", 1.0).toCompletableFuture();
+        CompletableFuture<Void> second = client.recordTemperature("group", "device2", 2.0).toCompletableFuture();
+        assertEquals(first, second);
+        first.get(3, TimeUnit.SECONDS);
+
+        // 未攒满的批次在flush时发送
+        CompletableFuture<Void> third = client.recordTemperature("group", "device1", 3.0).toCompletableFuture();
+        client.flush();
+        third.get(3, TimeUnit.SECONDS);
+
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()),
+                client.deviceList("group").toCompletableFuture().get(3, TimeUnit.SECONDS));
+        ActorRef<Device.Command> device1 = client.trackDevice("group", "device1").toCompletableFuture().get(3, TimeUnit.SECONDS);
+        assertEquals(Optional.of(3.0), client.readTemperature(device1).toCompletableFuture().get(3, TimeUnit.SECONDS));
+
+        client.recordTemperature(device1, 4.0).toCompletableFuture().get(3, TimeUnit.SECONDS);
+        Map<String, DeviceManager.TemperatureReading> expected = new HashMap<>();
+        expected.put("device1", new DeviceManager.Temperature(4.0));
+        expected.put("device2", new DeviceManager.Temperature(2.0));
+        assertEquals(expected, client.allTemperatures("group").toCompletableFuture().get(3, TimeUnit.SECONDS));
+        client.close();
+    }
+
+    @Test
+    public void testConcurrentCallersAndRestartedClientAreNotDeduplicated() throws Exception {
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        IotClient client = IotClient.create(testKit.system(), manager, Duration.ofSeconds(3), 0, Duration.ofSeconds(10));
+        int threads = 8;
+        int records = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> callers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            double value = t;
+            callers.add(executor.submit(() -> {
+                List<CompletableFuture<Void>> recorded = new ArrayList<>();
+                for (int i = 0; i < records; i++) {
+                    recorded.add(client.recordTemperature("g", "d0", value).toCompletableFuture());
+                }
+                CompletableFuture.allOf(recorded.toArray(new CompletableFuture<?>[0])).get(3, TimeUnit.SECONDS);
+                return null;
+            }));
+        }
+        for (Future<?> caller : callers) {
+            caller.get(5, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        // 每条读数都按顺序到达, 没有被当作重复或迟到
+        ActorRef<Device.Command> device = client.trackDevice("g", "d0").toCompletableFuture().get(3, TimeUnit.SECONDS);
+        TestProbe<Device.RespondDeviceStats> statsProbe = testKit.createTestProbe(Device.RespondDeviceStats.class);
+        device.tell(new Device.ReadDeviceStats(0L, statsProbe.getRef()));
+        Device.RespondDeviceStats stats = statsProbe.receiveMessage();
+        assertEquals(0L, stats.dedupeHits);
+        assertEquals(0L, stats.lateReadings);
+        client.close();
+
+        // 重新创建的客户端的记录不会被之前客户端的去重窗口吞掉
+        IotClient restarted = IotClient.create(testKit.system(), manager, Duration.ofSeconds(3), 0, Duration.ofSeconds(10));
+        restarted.recordTemperature("g", "d0", 99.0).toCompletableFuture().get(3, TimeUnit.SECONDS);
+        assertEquals(Optional.of(99.0), restarted.readTemperature(device).toCompletableFuture().get(3, TimeUnit.SECONDS));
+        restarted.close();
+    }
+}
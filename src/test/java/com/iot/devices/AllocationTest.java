@@ -0,0 +1,227 @@
+package com.iot.devices;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 热点消息处理路径的分配回归测试.
+ * <p>
+ * 被测actor运行在独占线程的PinnedDispatcher上, 测试线程预先构造好消息再连续发送, 用该线程的分配计数
+ * 除以消息数得到每条消息分配的字节数. 先用一个什么都不做的actor校准邮箱和调度本身的开销,
+ * 扣除后超过预算则失败. 预算按回复和转发的消息本身的大小设定, 处理路径上多出的分配(日志、装箱等)会让测试失败.
+ */
+public class AllocationTest {
+
+    private static final String DISPATCHER = "allocation-test-dispatcher";
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource(ConfigFactory.parseString(
+            DISPATCHER + " { type = PinnedDispatcher, executor = thread-pool-executor }"));
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int MESSAGES = 20_000;
+    // 前WARMUP_ROUNDS轮只用于JIT预热, 其余各轮取中位数
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 11;
+
+    // 扣除校准值之后每条消息(批量记录为每条读数)的字节数, 在必需的分配之外留96字节余量:
+    // Akka在ActorContextImpl.clearMdc和AbstractBehavior.receive中创建的OptionVal通常会被逃逸分析消除,
+    // 但JIT的profile受同一JVM里先运行的测试影响, 有时每条消息会多出两个(32字节), 校准actor也未必同时出现,
+    // 再加上校准值本身几十字节的波动. 每条消息多一次日志调用(约300字节)仍会超出
+    // TemperatureRecorded 24
+    private static final double RECORD_BUDGET = 120;
+    // RespondTemperature 32 + Optional 16 + Double 16
+    private static final double READ_BUDGET = 160;
+    // DeviceRegistered 24
+    private static final double TRACK_BUDGET = 120;
+    // 发给Device的RecordTemperature 32 + 发送时的Envelope和邮箱节点约48
+    private static final double BATCH_READING_BUDGET = 176;
+    private static final int BATCH_SIZE = 16;
+
+    // 关闭监督: restartWithBackoff的拦截器每条消息约100字节, 与处理路径无关, 会掩盖处理路径本身的变化
+    private static final DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+            .withSupervision(Duration.ZERO, Duration.ZERO, 0, 0);
+
+    @Test
+    public void testRecordTemperatureAllocations() {
+        ActorRef<Device.Command> device = spawnDevice("record");
+        TestProbe<Device.RespondTemperature> probe = testKit.createTestProbe(Device.RespondTemperature.class);
+        ActorRef<Device.TemperatureRecorded> ignore = testKit.system().ignoreRef();
+        long[] nextRequestId = {0};
+        double bytes = bytesPerMessage(device,
+                i -> new Device.RecordTemperature(nextRequestId[0]++, 21.0, ignore),
+                () -> {
+                    device.tell(new Device.ReadTemperature(0L, probe.getRef()));
+                    probe.receiveMessage();
+                });
+        assertWithinBudget("Device.RecordTemperature", bytes, RECORD_BUDGET);
+    }
+
+    @Test
+    public void testReadTemperatureAllocations() {
+        ActorRef<Device.Command> device = spawnDevice("read");
+        TestProbe<Device.TemperatureRecorded> probe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device.tell(new Device.RecordTemperature(0L, 21.0, probe.getRef()));
+        probe.receiveMessage();
+        ActorRef<Device.RespondTemperature> ignore = testKit.system().ignoreRef();
+        long[] nextRequestId = {1};
+        double bytes = bytesPerMessage(device,
+                i -> new Device.ReadTemperature(i, ignore),
+                () -> {
+                    device.tell(new Device.RecordTemperature(nextRequestId[0]++, 21.0, probe.getRef()));
+                    probe.receiveMessage();
+                });
+        assertWithinBudget("Device.ReadTemperature", bytes, READ_BUDGET);
+    }
+
+    @Test
+    public void testTrackExistingDeviceAllocations() {
+        ActorRef<DeviceGroup.Command> group = spawnGroup("track");
+        TestProbe<DeviceManager.DeviceRegistered> probe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        group.tell(new DeviceManager.RequestTrackDevice("track", "device", probe.getRef()));
+        probe.receiveMessage();
+        ActorRef<DeviceManager.DeviceRegistered> ignore = testKit.system().ignoreRef();
+        double bytes = bytesPerMessage(group,
+                i -> new DeviceManager.RequestTrackDevice("track", "device", ignore),
+                () -> {
+                    group.tell(new DeviceManager.RequestTrackDevice("track", "device", probe.getRef()));
+                    probe.receiveMessage();
+                });
+        assertWithinBudget("DeviceGroup.RequestTrackDevice", bytes, TRACK_BUDGET);
+    }
+
+    @Test
+    public void testRecordGroupTemperaturesAllocations() {
+        ActorRef<DeviceGroup.Command> group = spawnGroup("batch");
+        TestProbe<DeviceManager.GroupTemperaturesRecorded> probe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesRecorded.class);
+        List<String> deviceIds = new ArrayList<>();
+        double[] values = new double[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            deviceIds.add("device" + i);
+            values[i] = 21.0;
+        }
+        // 先创建好所有设备, 只测量已有设备的路径
+        group.tell(new DeviceManager.RecordGroupTemperatures(0L, "batch", deviceIds, values, probe.getRef()));
+        probe.receiveMessage();
+        ActorRef<DeviceManager.GroupTemperaturesRecorded> ignore = testKit.system().ignoreRef();
+        long[] nextRequestId = {BATCH_SIZE};
+        double bytes = bytesPerMessage(group,
+                i -> {
+                    DeviceManager.RecordGroupTemperatures batch = new DeviceManager.RecordGroupTemperatures(
+                            nextRequestId[0], "batch", deviceIds, values, ignore);
+                    nextRequestId[0] += BATCH_SIZE;
+                    return batch;
+                },
+                () -> {
+                    group.tell(new DeviceManager.RecordGroupTemperatures(
+                            nextRequestId[0], "batch", deviceIds, values, probe.getRef()));
+                    nextRequestId[0] += BATCH_SIZE;
+                    probe.receiveMessage();
+                });
+        assertWithinBudget("DeviceGroup.RecordGroupTemperatures per reading", bytes / BATCH_SIZE, BATCH_READING_BUDGET);
+    }
+
+    private static ActorRef<Device.Command> spawnDevice(String name) {
+        return testKit.spawn(Device.create("allocation", name, Optional.empty(), settings), name,
+                DispatcherSelector.fromConfig(DISPATCHER));
+    }
+
+    private static ActorRef<DeviceGroup.Command> spawnGroup(String groupId) {
+        return testKit.spawn(DeviceGroup.create(groupId, settings), "group-" + groupId,
+                DispatcherSelector.fromConfig(DISPATCHER));
+    }
+
+    private static void assertWithinBudget(String path, double bytes, double budget) {
+        double baseline = baseline();
+        double net = bytes - baseline;
+        assertTrue(String.format("%s allocates %.1f bytes per message (baseline %.1f), budget is %.0f",
+                path, net, baseline, budget), net <= budget);
+    }
+
+    // 收到消息什么都不做的actor, 与被测actor一样是带定时器的AbstractBehavior, 测得的是邮箱和调度本身的开销
+    private static double baseline() {
+        TestProbe<String> probe = testKit.createTestProbe(String.class);
+        Object flush = new Object();
+        Behavior<Object> noop = Behaviors.setup(context -> Behaviors.withTimers(timers -> new AbstractBehavior<Object>(context) {
+            @Override
+            public Receive<Object> createReceive() {
+                return newReceiveBuilder()
+                        .onMessage(Object.class, m -> {
+                            if (m == flush) {
+                                probe.getRef().tell("flushed");
+                            }
+                            return this;
+                        })
+                        .build();
+            }
+        }));
+        ActorRef<Object> actor = testKit.spawn(noop, DispatcherSelector.fromConfig(DISPATCHER));
+        Object message = new Object();
+        double bytes = bytesPerMessage(actor, i -> message, () -> {
+            actor.tell(flush);
+            probe.receiveMessage();
+        });
+        testKit.stop(actor);
+        return bytes;
+    }
+
+    /**
+     * 预先构造每轮的消息, 发送后用flush等待全部处理完, 返回预热之后各轮每条消息分配字节数的中位数.
+     */
+    private static <T> double bytesPerMessage(ActorRef<T> target, IntFunction<T> messages, Runnable flush) {
+        double[] samples = new double[ROUNDS - WARMUP_ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            List<T> batch = new ArrayList<>(MESSAGES);
+            for (int i = 0; i < MESSAGES; i++) {
+                batch.add(messages.apply(i));
+            }
+            flush.run();
+            long before = dispatcherAllocatedBytes();
+            for (T message : batch) {
+                target.tell(message);
+            }
+            flush.run();
+            long after = dispatcherAllocatedBytes();
+            if (round >= WARMUP_ROUNDS) {
+                samples[round - WARMUP_ROUNDS] = (after - before) / (double) MESSAGES;
+            }
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    // PinnedDispatcher的线程都只运行被测actor, 空闲线程不分配, 直接求和
+    private static long dispatcherAllocatedBytes() {
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().contains(DISPATCHER)) {
+                long bytes = THREADS.getThreadAllocatedBytes(thread.getId());
+                if (bytes > 0) {
+                    total += bytes;
+                }
+            }
+        }
+        return total;
+    }
+}
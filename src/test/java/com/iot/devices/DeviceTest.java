@@ -1,12 +1,27 @@
 package com.iot.devices;
 
+import akka.actor.ActorPath;
 import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.testkit.typed.javadsl.TestProbe;
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Adapter;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -55,6 +70,68 @@ public class DeviceTest {
 
     }
 
+    @Test
+    public void testIgnoreDuplicateTemperatureRecordings() {
+        TestProbe<Device.TemperatureRecorded> recordProbe =
+                testKit.createTestProbe(Device.TemperatureRecorded.class);
+        TestProbe<Device.RespondTemperature> readProbe =
+                testKit.createTestProbe(Device.RespondTemperature.class);
+        TestProbe<Device.RespondDeviceStats> statsProbe =
+                testKit.createTestProbe(Device.RespondDeviceStats.class);
+        ActorRef<Device.Command> deviceActor = testKit.spawn(Device.create("group", "device"));
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 24.0, recordProbe.getRef()));
+        assertEquals(1L, recordProbe.receiveMessage().requestId);
+        deviceActor.tell(new Device.RecordTemperature(3L, 30.0, recordProbe.getRef()));
+        assertEquals(3L, recordProbe.receiveMessage().requestId);
+
+        // 重试的请求仍然会被确认, 但不会覆盖读数
+        deviceActor.tell(new Device.RecordTemperature(1L, 99.0, recordProbe.getRef()));
+        assertEquals(1L, recordProbe.receiveMessage().requestId);
+        deviceActor.tell(new Device.ReadTemperature(4L, readProbe.getRef()));
+        assertEquals(Optional.of(30.0), readProbe.receiveMessage().value);
+
+        // 窗口内乱序迟到的请求只确认, 不覆盖同一发送方更新的读数
+        deviceActor.tell(new Device.RecordTemperature(2L, 25.0, recordProbe.getRef()));
+        assertEquals(2L, recordProbe.receiveMessage().requestId);
+        deviceActor.tell(new Device.ReadTemperature(5L, readProbe.getRef()));
+        assertEquals(Optional.of(30.0), readProbe.receiveMessage().value);
+
+        // 去重按发送方进行, 另一个发送方的同一requestId照常应用
+        TestProbe<Device.TemperatureRecorded> otherProbe =
+                testKit.createTestProbe(Device.TemperatureRecorded.class);
+        deviceActor.tell(new Device.RecordTemperature(1L, 35.0, otherProbe.getRef()));
+        assertEquals(1L, otherProbe.receiveMessage().requestId);
+        deviceActor.tell(new Device.ReadTemperature(6L, readProbe.getRef()));
+        assertEquals(Optional.of(35.0), readProbe.receiveMessage().value);
+
+        // 比窗口还旧的requestId按迟到处理, 不覆盖读数, 也不影响之后对窗口内requestId的去重
+        deviceActor.tell(new Device.RecordTemperature(100L, 40.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        deviceActor.tell(new Device.RecordTemperature(200L, 50.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        deviceActor.tell(new Device.RecordTemperature(100L, 40.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        deviceActor.tell(new Device.ReadTemperature(7L, readProbe.getRef()));
+        assertEquals(Optional.of(50.0), readProbe.receiveMessage().value);
+        deviceActor.tell(new Device.RecordTemperature(200L, 50.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        // 重启的发送方是新的ActorRef, 从较小的requestId开始也照常应用
+        TestProbe<Device.TemperatureRecorded> restartedProbe =
+                testKit.createTestProbe(Device.TemperatureRecorded.class);
+        deviceActor.tell(new Device.RecordTemperature(1L, 60.0, restartedProbe.getRef()));
+        restartedProbe.receiveMessage();
+        deviceActor.tell(new Device.ReadTemperature(8L, readProbe.getRef()));
+        assertEquals(Optional.of(60.0), readProbe.receiveMessage().value);
+
+        deviceActor.tell(new Device.ReadDeviceStats(9L, statsProbe.getRef()));
+        Device.RespondDeviceStats stats = statsProbe.receiveMessage();
+        assertEquals(9L, stats.requestId);
+        assertEquals(2L, stats.dedupeHits);
+        assertEquals(2L, stats.lateReadings);
+    }
+
     @Test
     public void testReplyToRegistrationRequests() {
         TestProbe<DeviceManager.DeviceRegistered> probe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
@@ -164,4 +241,784 @@ public class DeviceTest {
             return null;
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRestoreDevicesFromRegistry() throws IOException {
+        Path file = Files.createTempFile("registry", ".csv");
+        Files.write(file, ("# groupId,deviceId,lastReading\n" +
+                "g1,d1,21.5\n" +
+                "g1,d2,\n" +
+                "\n" +
+                "g2,d3,-4.0").getBytes(StandardCharsets.UTF_8));
+        DeviceRegistry registry = DeviceRegistry.load(file);
+        Files.delete(file);
+        assertEquals(3, registry.deviceCount);
+        assertEquals(Stream.of("g1", "g2").collect(Collectors.toSet()), registry.groups.keySet());
+
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        TestProbe<DeviceManager.DevicesRestored> restoredProbe = testKit.createTestProbe(DeviceManager.DevicesRestored.class);
+        manager.tell(new DeviceManager.RequestRestoreDevices(1L, "g1", registry.groups.get("g1"), restoredProbe.getRef()));
+        DeviceManager.DevicesRestored restored = restoredProbe.receiveMessage();
+        assertEquals(1L, restored.requestId);
+        assertEquals(2, restored.created);
+
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        manager.tell(new DeviceManager.RequestDeviceList(2L, "g1", deviceListProbe.getRef()));
+        assertEquals(Stream.of("d1", "d2").collect(Collectors.toSet()), deviceListProbe.receiveMessage().ids);
+
+        // 恢复的设备带有最后一次读数, 之后注册同一设备返回的是同一个actor
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        manager.tell(new DeviceManager.RequestTrackDevice("g1", "d1", registeredProbe.getRef()));
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+        registeredProbe.receiveMessage().device.tell(new Device.ReadTemperature(3L, readProbe.getRef()));
+        assertEquals(Optional.of(21.5), readProbe.receiveMessage().value);
+
+        // 重复恢复不会覆盖已存在的设备
+        manager.tell(new DeviceManager.RequestRestoreDevices(4L, "g1", registry.groups.get("g1"), restoredProbe.getRef()));
+        assertEquals(0, restoredProbe.receiveMessage().created);
+    }
+
+    @Test
+    public void testCollectTemperaturesFromAllDevices() {
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allTempProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        manager.tell(new DeviceManager.RequestAllTemperatures(1L, "group", allTempProbe.getRef()));
+        DeviceManager.RespondAllTemperatures response = allTempProbe.receiveMessage();
+        assertEquals(1L, response.requestId);
+
+        Map<String, DeviceManager.TemperatureReading> expected = new HashMap<>();
+        expected.put("device1", new DeviceManager.Temperature(1.0));
+        expected.put("device2", DeviceManager.TemperatureNotAvailable.INSTANCE);
+        assertEquals(expected, response.temperatures);
+
+        // 不存在的Group返回空结果
+        manager.tell(new DeviceManager.RequestAllTemperatures(2L, "unknown", allTempProbe.getRef()));
+        assertEquals(Collections.emptyMap(), allTempProbe.receiveMessage().temperatures);
+    }
+
+    @Test
+    public void testPublishReadingSnapshot() throws Exception {
+        Path directory = Files.createTempDirectory("snapshots");
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withSnapshots(directory, Duration.ofMillis(50));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("snapshot-group", settings));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("snapshot-group", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        groupActor.tell(new DeviceManager.RequestTrackDevice("snapshot-group", "device2", registeredProbe.getRef()));
+        registeredProbe.receiveMessage();
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.RecordTemperature(0L, 21.5, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        try (ReadingSnapshot.Reader reader = ReadingSnapshot.Reader.open(ReadingSnapshot.fileFor(directory, "snapshot-group"))) {
+            registeredProbe.awaitAssert(() -> {
+                ReadingSnapshot.Snapshot snapshot;
+                try {
+                    snapshot = reader.read();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                assertEquals(new DeviceManager.Temperature(21.5), snapshot.readings.get("device1"));
+                assertEquals(DeviceManager.TemperatureNotAvailable.INSTANCE, snapshot.readings.get("device2"));
+                return null;
+            });
+        }
+        testKit.stop(groupActor);
+    }
+
+    @Test
+    public void testPublishSnapshotOfPartitionedGroupFromPushedReadings() throws Exception {
+        Path directory = Files.createTempDirectory("snapshots");
+        // 超过2个设备后拆成2个分区, 分区设备的读数经分区转给父Group发布
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withSnapshots(directory, Duration.ofMillis(50))
+                .withPartitioning(2, 0, 2);
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("partitioned-snapshot", settings));
+        Map<String, ActorRef<Device.Command>> devices = new HashMap<>();
+        for (int i = 1; i <= 4; i++) {
+            groupActor.tell(new DeviceManager.RequestTrackDevice("partitioned-snapshot", "device" + i, registeredProbe.getRef()));
+            DeviceManager.DeviceRegistered registered = registeredProbe.receiveMessage();
+            devices.put(registered.deviceId, registered.device);
+        }
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        devices.get("device1").tell(new Device.RecordTemperature(0L, 20.5, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        devices.get("device4").tell(new Device.RecordTemperature(0L, 24.5, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        // 同一个桶内的变化也要反映到快照
+        devices.get("device4").tell(new Device.RecordTemperature(1L, 24.6, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        devices.get("device3").tell(Device.Passivate.INSTANCE);
+
+        Map<String, DeviceManager.TemperatureReading> expected = new HashMap<>();
+        expected.put("device1", new DeviceManager.Temperature(20.5));
+        expected.put("device2", DeviceManager.TemperatureNotAvailable.INSTANCE);
+        expected.put("device4", new DeviceManager.Temperature(24.6));
+        try (ReadingSnapshot.Reader reader = ReadingSnapshot.Reader.open(
+                ReadingSnapshot.fileFor(directory, "partitioned-snapshot"))) {
+            registeredProbe.awaitAssert(() -> {
+                try {
+                    assertEquals(expected, reader.read().readings);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                return null;
+            });
+        }
+        testKit.stop(groupActor);
+    }
+
+    @Test
+    public void testCoalesceConcurrentTemperatureRequests() {
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withAllTemperaturesCacheTtl(Duration.ofMinutes(1));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        ActorRef<DeviceGroup.Command> groupActor = testKit.spawn(DeviceGroup.create("group", settings));
+        groupActor.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.RecordTemperature(0L, 1.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        // 同时到达的请求共享一次收集, 各自收到自己的requestId
+        TestProbe<DeviceManager.RespondAllTemperatures> probe1 = testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        TestProbe<DeviceManager.RespondAllTemperatures> probe2 = testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(1L, "group", probe1.getRef()));
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(2L, "group", probe2.getRef()));
+        DeviceManager.RespondAllTemperatures response1 = probe1.receiveMessage();
+        DeviceManager.RespondAllTemperatures response2 = probe2.receiveMessage();
+        assertEquals(1L, response1.requestId);
+        assertEquals(2L, response2.requestId);
+        assertEquals(response1.temperatures, response2.temperatures);
+        assertEquals(new DeviceManager.Temperature(1.0), response1.temperatures.get("device1"));
+
+        // TTL内直接用缓存回复, 看不到之后的新读数
+        device1.tell(new Device.RecordTemperature(1L, 2.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        groupActor.tell(new DeviceManager.RequestAllTemperatures(3L, "group", probe1.getRef()));
+        DeviceManager.RespondAllTemperatures cached = probe1.receiveMessage();
+        assertEquals(3L, cached.requestId);
+        assertEquals(new DeviceManager.Temperature(1.0), cached.temperatures.get("device1"));
+    }
+
+    @Test
+    public void testFleetTemperaturesAcrossGroups() {
+        // fan-out为2时5个Group会形成两层查询树
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config()).withFleetQueryFanOut(2);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create(settings));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        for (int i = 1; i <= 5; i++) {
+            manager.tell(new DeviceManager.RequestTrackDevice("g" + i, "device", registeredProbe.getRef()));
+            registeredProbe.receiveMessage().device.tell(new Device.RecordTemperature(0L, i, recordProbe.getRef()));
+            recordProbe.receiveMessage();
+        }
+
+        TestProbe<DeviceManager.FleetTemperaturesResponse> fleetProbe =
+                testKit.createTestProbe(DeviceManager.FleetTemperaturesResponse.class);
+        manager.tell(new DeviceManager.RequestFleetTemperatures(1L, Optional.empty(), Duration.ofSeconds(3), true,
+                fleetProbe.getRef()));
+        Set<String> streamed = new HashSet<>();
+        DeviceManager.FleetTemperaturesResponse message = fleetProbe.receiveMessage();
+        while (message instanceof DeviceManager.FleetTemperaturesPartial) {
+            DeviceManager.FleetTemperaturesPartial partial = (DeviceManager.FleetTemperaturesPartial) message;
+            assertEquals(1L, partial.requestId);
+            streamed.add(partial.groupId);
+            message = fleetProbe.receiveMessage();
+        }
+        DeviceManager.RespondFleetTemperatures all = (DeviceManager.RespondFleetTemperatures) message;
+        assertEquals(1L, all.requestId);
+        assertEquals(Stream.of("g1", "g2", "g3", "g4", "g5").collect(Collectors.toSet()), streamed);
+        assertEquals(streamed, all.groups.keySet());
+        assertEquals(new DeviceManager.Temperature(3.0), all.groups.get("g3").get("device"));
+        assertEquals(Collections.emptySet(), all.timedOutGroups);
+
+        // 只查询选中的Group, 不发送部分结果
+        manager.tell(new DeviceManager.RequestFleetTemperatures(2L, Optional.of(Stream.of("g2", "g4", "missing").collect(Collectors.toSet())),
+                Duration.ofSeconds(3), false, fleetProbe.getRef()));
+        DeviceManager.RespondFleetTemperatures selected = (DeviceManager.RespondFleetTemperatures) fleetProbe.receiveMessage();
+        assertEquals(2L, selected.requestId);
+        assertEquals(Stream.of("g2", "g4").collect(Collectors.toSet()), selected.groups.keySet());
+    }
+
+    @Test
+    public void testRaiseAndClearAlertsOnStateTransitions() {
+        TestProbe<AlertEvent> alertProbe = testKit.createTestProbe(AlertEvent.class);
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withAlerts(Arrays.asList(
+                        AlertRule.above("too-hot", 30.0, 2.0).forGroup("group"),
+                        AlertRule.below("too-cold", 0.0, 1.0).forDevice("group", "other-device")),
+                        alertProbe.getRef());
+        ActorRef<Device.Command> deviceActor =
+                testKit.spawn(Device.create("group", "device", Optional.empty(), settings));
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+
+        deviceActor.tell(new Device.RecordTemperature(1L, 31.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        AlertEvent raised = alertProbe.receiveMessage();
+        assertEquals("too-hot", raised.rule);
+        assertEquals(true, raised.raised);
+        assertEquals(31.0, raised.value, 0.0);
+
+        // 仍在告警或处于滞回区间内都不会再发事件
+        deviceActor.tell(new Device.RecordTemperature(2L, 35.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        deviceActor.tell(new Device.RecordTemperature(3L, 29.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        alertProbe.expectNoMessage();
+
+        // 回到阈值减滞回以内才恢复; too-cold只适用于other-device
+        deviceActor.tell(new Device.RecordTemperature(4L, -5.0, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+        AlertEvent cleared = alertProbe.receiveMessage();
+        assertEquals("too-hot", cleared.rule);
+        assertEquals(false, cleared.raised);
+        alertProbe.expectNoMessage();
+    }
+
+    @Test
+    public void testRejectRequestsWhenGroupIsOverloaded() {
+        // 几乎不补充令牌, 每个Group只允许两次突发请求
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config()).withAdmission(0.001, 2, 0);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create(settings));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device1", registeredProbe.getRef()));
+        assertEquals(false, registeredProbe.receiveMessage().overloaded);
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device2", registeredProbe.getRef()));
+        assertEquals(false, registeredProbe.receiveMessage().overloaded);
+
+        manager.tell(new DeviceManager.RequestTrackDevice("group", "device3", registeredProbe.getRef()));
+        DeviceManager.DeviceRegistered rejected = registeredProbe.receiveMessage();
+        assertEquals(true, rejected.overloaded);
+        assertEquals(null, rejected.device);
+
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        manager.tell(new DeviceManager.RequestDeviceList(1L, "group", deviceListProbe.getRef()));
+        DeviceManager.ReplyDeviceList list = deviceListProbe.receiveMessage();
+        assertEquals(1L, list.requestId);
+        assertEquals(true, list.overloaded);
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allTempProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        manager.tell(new DeviceManager.RequestAllTemperatures(2L, "group", allTempProbe.getRef()));
+        DeviceManager.RespondAllTemperatures temperatures = allTempProbe.receiveMessage();
+        assertEquals(2L, temperatures.requestId);
+        assertEquals(true, temperatures.overloaded);
+
+        // 其他Group有自己的令牌桶
+        manager.tell(new DeviceManager.RequestTrackDevice("other", "device1", registeredProbe.getRef()));
+        assertEquals(false, registeredProbe.receiveMessage().overloaded);
+    }
+
+    @Test
+    public void testFleetQueriesGoThroughAdmission() {
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config()).withAdmission(0.001, 1, 0);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create(settings));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        manager.tell(new DeviceManager.RequestTrackDevice("g1", "device", registeredProbe.getRef()));
+        assertEquals(false, registeredProbe.receiveMessage().overloaded);
+
+        // 两个Group唯一的令牌都用在了注册上, 全局查询不能绕过准入
+        manager.tell(new DeviceManager.RequestTrackDevice("g2", "device", registeredProbe.getRef()));
+        assertEquals(false, registeredProbe.receiveMessage().overloaded);
+        TestProbe<DeviceManager.FleetTemperaturesResponse> fleetProbe =
+                testKit.createTestProbe(DeviceManager.FleetTemperaturesResponse.class);
+        manager.tell(new DeviceManager.RequestFleetTemperatures(1L, Optional.empty(), Duration.ofSeconds(3), false,
+                fleetProbe.getRef()));
+        DeviceManager.RespondFleetTemperatures fleet = (DeviceManager.RespondFleetTemperatures) fleetProbe.receiveMessage();
+        assertEquals(new HashSet<>(Arrays.asList("g1", "g2")), fleet.overloadedGroups);
+        assertEquals(Collections.emptyMap(), fleet.groups);
+
+        TestProbe<DeviceManager.RespondFleetTemperatureSketch> sketchProbe =
+                testKit.createTestProbe(DeviceManager.RespondFleetTemperatureSketch.class);
+        manager.tell(new DeviceManager.RequestFleetTemperatureSketch(2L, Optional.empty(), Duration.ofSeconds(3),
+                sketchProbe.getRef()));
+        DeviceManager.RespondFleetTemperatureSketch sketch = sketchProbe.receiveMessage();
+        assertEquals(new HashSet<>(Arrays.asList("g1", "g2")), sketch.overloadedGroups);
+        assertEquals(Collections.emptyMap(), sketch.groups);
+        assertEquals(Collections.emptySet(), sketch.timedOutGroups);
+    }
+
+    @Test
+    public void testExpireBacklogOfDroppedRequests() {
+        long timeout = Duration.ofSeconds(30).toNanos();
+        GroupBacklog backlog = new GroupBacklog(Duration.ofSeconds(30));
+        backlog.admitted(0L);
+        backlog.admitted(timeout / 2);
+        assertEquals(2, backlog.size());
+        // 超时从计数离开0开始算, 之后的准入不会推迟超时
+        assertEquals(false, backlog.expired(timeout - 1));
+        assertEquals(true, backlog.expired(timeout));
+
+        // 处理请求算作进展
+        backlog.processed(timeout);
+        assertEquals(1, backlog.size());
+        assertEquals(false, backlog.expired(2 * timeout - 1));
+
+        // 清零前准入的请求在清零后才处理, 计数不能变成负数
+        backlog.reset();
+        assertEquals(false, backlog.expired(3 * timeout));
+        backlog.processed(3 * timeout);
+        assertEquals(0, backlog.size());
+    }
+
+    @Test
+    public void testArchiveCompressedReadingsPerGroup() throws Exception {
+        // 时间戳跳变和特殊值都要原样还原
+        long[] timestamps = {1_000L, 2_000L, 3_000L, 3_001L, 2_500L, 9_000_000_000L, 9_000_001_000L};
+        double[] values = {21.5, 21.5, 21.6, -0.0, Double.NaN, 1e300, 21.4};
+        GorillaBlock.Encoder encoder = new GorillaBlock.Encoder();
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.append(timestamps[i], values[i]);
+        }
+        java.nio.ByteBuffer payload = java.nio.ByteBuffer.allocate(encoder.byteLength());
+        encoder.writeTo(payload);
+        payload.flip();
+        List<Long> decodedTimestamps = new ArrayList<>();
+        List<Double> decodedValues = new ArrayList<>();
+        GorillaBlock.decode(payload, encoder.count(), (timestamp, value) -> {
+            decodedTimestamps.add(timestamp);
+            decodedValues.add(value);
+        });
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], (long) decodedTimestamps.get(i));
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decodedValues.get(i)));
+        }
+
+        Path directory = Files.createTempDirectory("archive");
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withArchive(directory, 2, Duration.ofMinutes(10));
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("archived", settings));
+        TestProbe<DeviceManager.GroupTemperaturesRecorded> recordedProbe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesRecorded.class);
+        long before = System.currentTimeMillis();
+        group.tell(new DeviceManager.RecordGroupTemperatures(0L, "archived",
+                Arrays.asList("device1", "device2", "device1", "device1", "device1"),
+                new double[]{1.0, 2.0, 3.0, 4.0, 5.0}, recordedProbe.getRef()));
+        recordedProbe.receiveMessage();
+        // 批次确认只表示已转发, 查询一次温度保证设备都处理完了
+        TestProbe<DeviceManager.RespondAllTemperatures> allTempProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        group.tell(new DeviceManager.RequestAllTemperatures(1L, "archived", allTempProbe.getRef()));
+        allTempProbe.receiveMessage();
+        // 停止时每个设备封存未满的块, Group等所有块写完再关闭归档
+        testKit.stop(group);
+        long after = System.currentTimeMillis();
+
+        try (ReadingArchive.Reader reader = ReadingArchive.Reader.open(ReadingArchive.fileFor(directory, "archived"))) {
+            List<Double> device1 = new ArrayList<>();
+            assertEquals(4L, reader.scan(Optional.of("device1"), before, after, (deviceId, timestamp, value) -> device1.add(value)));
+            assertEquals(Arrays.asList(1.0, 3.0, 4.0, 5.0), device1);
+            assertEquals(5L, reader.scan(Optional.empty(), before, after, (deviceId, timestamp, value) -> {}));
+            assertEquals(0L, reader.scan(Optional.empty(), after + 1, Long.MAX_VALUE, (deviceId, timestamp, value) -> {}));
+        }
+    }
+
+    @Test
+    public void testSealArchiveBlockWhenMaxAgePassesWithoutNewReadings() throws Exception {
+        Path directory = Files.createTempDirectory("archive");
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withArchive(directory, 1024, Duration.ofMillis(200));
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("quiet", settings));
+        TestProbe<DeviceManager.GroupTemperaturesRecorded> recordedProbe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesRecorded.class);
+        group.tell(new DeviceManager.RecordGroupTemperatures(0L, "quiet", Collections.singletonList("device1"),
+                new double[]{21.5}, recordedProbe.getRef()));
+        recordedProbe.receiveMessage();
+
+        // 之后不再有读数, 也不停止Group, 块在max-block-age后由定时器封存
+        recordedProbe.awaitAssert(Duration.ofSeconds(3), () -> {
+            try (ReadingArchive.Reader reader = ReadingArchive.Reader.open(ReadingArchive.fileFor(directory, "quiet"))) {
+                List<Double> device1 = new ArrayList<>();
+                reader.scan(Optional.of("device1"), 0L, Long.MAX_VALUE, (deviceId, timestamp, value) -> device1.add(value));
+                assertEquals(Collections.singletonList(21.5), device1);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return null;
+        });
+        testKit.stop(group);
+    }
+
+    @Test
+    public void testArchiveWritersShareThreadsAndKeepBlockOrder() throws Exception {
+        Path directory = Files.createTempDirectory("archive");
+        // 3个Group的Writer共用一个线程, 每个文件中的块仍按提交顺序写入
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+        try {
+            List<ReadingArchive.Writer> writers = new ArrayList<>();
+            for (int w = 0; w < 3; w++) {
+                writers.add(new ReadingArchive.Writer(ReadingArchive.fileFor(directory, "shared" + w), executor));
+            }
+            for (int i = 0; i < 200; i++) {
+                for (ReadingArchive.Writer writer : writers) {
+                    GorillaBlock.Encoder block = new GorillaBlock.Encoder();
+                    block.append(1_000L + i, i);
+                    writer.append("device1", block);
+                }
+            }
+            for (ReadingArchive.Writer writer : writers) {
+                writer.close();
+                assertEquals(0L, writer.failedBlocks());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        List<Double> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            expected.add((double) i);
+        }
+        for (int w = 0; w < 3; w++) {
+            try (ReadingArchive.Reader reader = ReadingArchive.Reader.open(ReadingArchive.fileFor(directory, "shared" + w))) {
+                List<Double> values = new ArrayList<>();
+                reader.scan(Optional.empty(), 0L, Long.MAX_VALUE, (deviceId, timestamp, value) -> values.add(value));
+                assertEquals(expected, values);
+            }
+        }
+    }
+
+    @Test
+    public void testDeviceDirectoryFollowsDeviceLifecycle() {
+        DeviceDirectory directory = new DeviceDirectory();
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config()).withDeviceDirectory(directory);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create(settings));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+
+        manager.tell(new DeviceManager.RequestTrackDevice("directory", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+        manager.tell(new DeviceManager.RequestTrackDevice("directory", "device2", registeredProbe.getRef()));
+        ActorRef<Device.Command> device2 = registeredProbe.receiveMessage().device;
+        assertEquals(Optional.of(device1), directory.lookup("directory", "device1"));
+        assertEquals(Optional.empty(), directory.lookup("directory", "unknown"));
+        assertEquals(Optional.empty(), directory.lookup("unknown", "device1"));
+
+        // 直接发给目录中的引用, 不经过DeviceManager和DeviceGroup
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        directory.lookup("directory", "device2").get().tell(new Device.RecordTemperature(1L, 20.0, recordProbe.getRef()));
+        assertEquals(1L, recordProbe.receiveMessage().requestId);
+
+        device1.tell(Device.Passivate.INSTANCE);
+        registeredProbe.awaitAssert(() -> {
+            assertEquals(Optional.empty(), directory.lookup("directory", "device1"));
+            return null;
+        });
+
+        // 同名的新Device重新登记, 旧引用不会再出现
+        manager.tell(new DeviceManager.RequestTrackDevice("directory", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> newDevice1 = registeredProbe.receiveMessage().device;
+        assertNotEquals(device1, newDevice1);
+        assertEquals(Optional.of(newDevice1), directory.lookup("directory", "device1"));
+        assertEquals(Optional.of(device2), directory.lookup("directory", "device2"));
+    }
+
+    @Test
+    public void testSplitHotGroupIntoPartitions() {
+        // 超过2个设备后拆成2个分区
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config()).withPartitioning(2, 0, 2);
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create(settings));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        List<String> deviceIds = new ArrayList<>();
+        Map<String, ActorRef<Device.Command>> devices = new HashMap<>();
+        for (int i = 1; i <= 8; i++) {
+            String deviceId = "device" + i;
+            deviceIds.add(deviceId);
+            manager.tell(new DeviceManager.RequestTrackDevice("hot", deviceId, registeredProbe.getRef()));
+            DeviceManager.DeviceRegistered registered = registeredProbe.receiveMessage();
+            assertEquals(deviceId, registered.deviceId);
+            devices.put(deviceId, registered.device);
+        }
+        // 分区中的设备同样返回同一个actor
+        manager.tell(new DeviceManager.RequestTrackDevice("hot", "device7", registeredProbe.getRef()));
+        assertEquals(devices.get("device7"), registeredProbe.receiveMessage().device);
+
+        // 一批读数同时落在本地和分区, 只确认一次
+        double[] values = new double[deviceIds.size() + 1];
+        List<String> batchIds = new ArrayList<>(deviceIds);
+        batchIds.add("device9");
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 20.0 + i;
+        }
+        TestProbe<DeviceManager.GroupTemperaturesRecorded> recordedProbe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesRecorded.class);
+        manager.tell(new DeviceManager.RecordGroupTemperatures(10L, "hot", batchIds, values, recordedProbe.getRef()));
+        DeviceManager.GroupTemperaturesRecorded recorded = recordedProbe.receiveMessage();
+        assertEquals(10L, recorded.requestId);
+        assertEquals(9, recorded.recorded);
+        recordedProbe.expectNoMessage(Duration.ofMillis(100));
+
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        manager.tell(new DeviceManager.RequestDeviceList(1L, "hot", deviceListProbe.getRef()));
+        DeviceManager.ReplyDeviceList list = deviceListProbe.receiveMessage();
+        assertEquals(1L, list.requestId);
+        assertEquals(new HashSet<>(batchIds), list.ids);
+
+        TestProbe<DeviceManager.RespondAllTemperatures> allTempProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        manager.tell(new DeviceManager.RequestAllTemperatures(2L, "hot", allTempProbe.getRef()));
+        DeviceManager.RespondAllTemperatures response = allTempProbe.receiveMessage();
+        Map<String, DeviceManager.TemperatureReading> expected = new HashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            expected.put(batchIds.get(i), new DeviceManager.Temperature(values[i]));
+        }
+        assertEquals(2L, response.requestId);
+        assertEquals(expected, response.temperatures);
+
+        // 分区各自维护的温度分布合并后覆盖所有设备
+        TestProbe<DeviceManager.RespondTemperatureSketch> sketchProbe =
+                testKit.createTestProbe(DeviceManager.RespondTemperatureSketch.class);
+        sketchProbe.awaitAssert(() -> {
+            manager.tell(new DeviceManager.RequestTemperatureSketch(3L, "hot", sketchProbe.getRef()));
+            assertEquals(9, sketchProbe.receiveMessage().sketch.count());
+            return null;
+        });
+    }
+
+    @Test
+    public void testTemperatureQuantilesForGroupAndFleet() {
+        ActorRef<DeviceManager.Command> manager = testKit.spawn(DeviceManager.create());
+        TestProbe<DeviceManager.GroupTemperaturesRecorded> recordedProbe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesRecorded.class);
+        List<String> deviceIds = new ArrayList<>();
+        double[] values = new double[100];
+        for (int i = 0; i < values.length; i++) {
+            deviceIds.add("device" + i);
+            values[i] = i + 1;
+        }
+        manager.tell(new DeviceManager.RecordGroupTemperatures(0L, "north", deviceIds, values, recordedProbe.getRef()));
+        recordedProbe.receiveMessage();
+        manager.tell(new DeviceManager.RecordGroupTemperatures(0L, "south", Arrays.asList("device0", "device1"),
+                new double[]{-5.0, 40.0}, recordedProbe.getRef()));
+        recordedProbe.receiveMessage();
+
+        // Device处理读数后才通知Group, 分布是异步更新的
+        TestProbe<DeviceManager.RespondTemperatureSketch> sketchProbe =
+                testKit.createTestProbe(DeviceManager.RespondTemperatureSketch.class);
+        sketchProbe.awaitAssert(() -> {
+            manager.tell(new DeviceManager.RequestTemperatureSketch(1L, "north", sketchProbe.getRef()));
+            TemperatureSketch sketch = sketchProbe.receiveMessage().sketch;
+            assertEquals(100, sketch.count());
+            assertEquals(1.0, sketch.quantile(0.0).get(), 0.01);
+            assertEquals(50.0, sketch.quantile(0.5).get(), 0.5);
+            assertEquals(99.0, sketch.quantile(0.99).get(), 0.99);
+            return null;
+        });
+
+        // 读数变化时旧值从分布中删除
+        manager.tell(new DeviceManager.RecordGroupTemperatures(200L, "north", Collections.singletonList("device0"),
+                new double[]{1000.0}, recordedProbe.getRef()));
+        recordedProbe.receiveMessage();
+        sketchProbe.awaitAssert(() -> {
+            manager.tell(new DeviceManager.RequestTemperatureSketch(2L, "north", sketchProbe.getRef()));
+            TemperatureSketch sketch = sketchProbe.receiveMessage().sketch;
+            assertEquals(100, sketch.count());
+            assertEquals(2.0, sketch.quantile(0.0).get(), 0.02);
+            assertEquals(1000.0, sketch.quantile(1.0).get(), 10.0);
+            return null;
+        });
+
+        TestProbe<DeviceManager.RespondFleetTemperatureSketch> fleetProbe =
+                testKit.createTestProbe(DeviceManager.RespondFleetTemperatureSketch.class);
+        fleetProbe.awaitAssert(() -> {
+            manager.tell(new DeviceManager.RequestFleetTemperatureSketch(3L, Optional.empty(), Duration.ofSeconds(3),
+                    fleetProbe.getRef()));
+            DeviceManager.RespondFleetTemperatureSketch response = fleetProbe.receiveMessage();
+            assertEquals(3L, response.requestId);
+            assertEquals(102, response.fleet.count());
+            assertEquals(-5.0, response.fleet.quantile(0.0).get(), 0.05);
+            assertEquals(new HashSet<>(Arrays.asList("north", "south")), response.groups.keySet());
+            assertEquals(2, response.groups.get("south").count());
+            assertEquals(Collections.emptySet(), response.timedOutGroups);
+            return null;
+        });
+    }
+
+    @Test
+    public void testSketchCopyAcrossZeroKeepsOnlyNonEmptyBuckets() {
+        TemperatureSketch sketch = new TemperatureSketch();
+        for (double value : new double[]{-20.0, -20.0, -0.5, 0.0, 0.5, 20.0}) {
+            sketch.add(value);
+        }
+        // -20到20度之间连续存放需要七百多个桶
+        assertEquals(true, sketch.storedInts() > 700);
+        TemperatureSketch copy = sketch.copy();
+        assertEquals(2 * 5, copy.storedInts());
+        assertEquals(6, copy.count());
+        assertEquals(-20.0, copy.quantile(0.0).get(), 0.2);
+        assertEquals(0.0, copy.quantile(0.6).get(), 0.0);
+        assertEquals(20.0, copy.quantile(1.0).get(), 0.2);
+
+        // 只存非空桶的副本照常合并, 也可以继续合并其他副本
+        TemperatureSketch fleet = new TemperatureSketch();
+        fleet.merge(copy);
+        fleet.merge(copy);
+        assertEquals(12, fleet.count());
+        assertEquals(-0.5, fleet.quantile(0.4).get(), 0.005);
+        TemperatureSketch fanIn = copy.copy();
+        fanIn.merge(copy);
+        assertEquals(12, fanIn.count());
+        assertEquals(20.0, fanIn.quantile(1.0).get(), 0.2);
+        assertEquals(6, copy.count());
+
+        // 读数集中时仍然连续存放
+        TemperatureSketch narrow = new TemperatureSketch();
+        for (int i = 0; i < 100; i++) {
+            narrow.add(20.0 + i * 0.1);
+        }
+        assertEquals(narrow.copy().storedInts(), TemperatureSketch.keyOf(29.9) - TemperatureSketch.keyOf(20.0) + 1);
+    }
+
+    @Test
+    public void testRestartWithBackoffKeepsState() {
+        RestartCounters counters = new RestartCounters();
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withSupervision(Duration.ofMillis(100), Duration.ofSeconds(1), 0.2, 100)
+                .withRestartCounters(counters);
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("restarts", settings));
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        group.tell(new DeviceManager.RequestTrackDevice("restarts", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+
+        TestProbe<Device.TemperatureRecorded> recordProbe = testKit.createTestProbe(Device.TemperatureRecorded.class);
+        device1.tell(new Device.RecordTemperature(1L, 21.5, recordProbe.getRef()));
+        recordProbe.receiveMessage();
+
+        // 退避期间的消息暂存, 重启后按顺序处理, 最后的读数和去重窗口都还在
+        TestProbe<Device.RespondTemperature> readProbe = testKit.createTestProbe(Device.RespondTemperature.class);
+        TestProbe<Device.RespondDeviceStats> statsProbe = testKit.createTestProbe(Device.RespondDeviceStats.class);
+        device1.tell(Device.Crash.INSTANCE);
+        device1.tell(new Device.ReadTemperature(2L, readProbe.getRef()));
+        device1.tell(new Device.RecordTemperature(1L, 30.0, recordProbe.getRef()));
+        device1.tell(new Device.ReadDeviceStats(3L, statsProbe.getRef()));
+        assertEquals(Optional.of(21.5), readProbe.receiveMessage().value);
+        recordProbe.receiveMessage();
+        Device.RespondDeviceStats stats = statsProbe.receiveMessage();
+        assertEquals(1, stats.restarts);
+        assertEquals(1L, stats.dedupeHits);
+        assertEquals(1L, counters.deviceRestarts());
+
+        // Group重启后沿用已有的设备, 设备本身也没有停止
+        group.tell(DeviceGroup.Crash.INSTANCE);
+        group.tell(new DeviceManager.RequestTrackDevice("restarts", "device1", registeredProbe.getRef()));
+        assertEquals(device1, registeredProbe.receiveMessage().device);
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        group.tell(new DeviceManager.RequestDeviceList(4L, "restarts", deviceListProbe.getRef()));
+        assertEquals(Collections.singleton("device1"), deviceListProbe.receiveMessage().ids);
+        assertEquals(1L, counters.groupRestarts());
+        device1.tell(new Device.ReadTemperature(5L, readProbe.getRef()));
+        assertEquals(Optional.of(21.5), readProbe.receiveMessage().value);
+    }
+
+    @Test
+    public void testIgnoreRepliesToCollectionsStartedBeforeRestart() {
+        RestartCounters counters = new RestartCounters();
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withSupervision(Duration.ofMillis(100), Duration.ofSeconds(1), 0.2, 100)
+                .withRestartCounters(counters);
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("stale", settings));
+        TestProbe<DeviceManager.GroupTemperaturesRecorded> recordedProbe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesRecorded.class);
+        group.tell(new DeviceManager.RecordGroupTemperatures(0L, "stale", Arrays.asList("device1", "device2"),
+                new double[]{1.0, 2.0}, recordedProbe.getRef()));
+        recordedProbe.receiveMessage();
+
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        group.tell(new DeviceManager.RequestTrackDevice("stale", "device1", registeredProbe.getRef()));
+        ActorRef<Device.Command> device1 = registeredProbe.receiveMessage().device;
+
+        // device1在退避中, 收集一定还在等它的回复时Group就重启了; 它恢复后的回复只会到达重启后的新实例
+        TestProbe<DeviceManager.RespondAllTemperatures> allTempProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        device1.tell(Device.Crash.INSTANCE);
+        group.tell(new DeviceManager.RequestAllTemperatures(1L, "stale", allTempProbe.getRef()));
+        group.tell(DeviceGroup.Crash.INSTANCE);
+        allTempProbe.awaitAssert(() -> {
+            assertEquals(1L, counters.groupRestarts());
+            assertEquals(1L, counters.deviceRestarts());
+            return null;
+        });
+
+        // 重启前的请求没有回复, 旧收集的回复也不会混进新的收集
+        group.tell(new DeviceManager.RequestAllTemperatures(2L, "stale", allTempProbe.getRef()));
+        DeviceManager.RespondAllTemperatures response = allTempProbe.receiveMessage();
+        assertEquals(2L, response.requestId);
+        assertEquals(2, response.temperatures.size());
+    }
+
+    @Test
+    public void testFinishCollectionsWhenPartitionDropsRequests() {
+        // 分区退避1秒且不暂存消息, 期间收到的请求都被丢弃
+        DeviceSettings settings = DeviceSettings.create(testKit.system().settings().config())
+                .withPartitioning(2, 0, 2)
+                .withQueryTimeout(Duration.ofMillis(300))
+                .withSupervision(Duration.ofSeconds(1), Duration.ofSeconds(1), 0.0, 0);
+        ActorRef<DeviceGroup.Command> group = testKit.spawn(DeviceGroup.create("lossy", settings));
+        List<String> deviceIds = Arrays.asList("device1", "device2", "device3", "device4", "device5", "device6");
+        double[] values = {1.0, 2.0, 3.0, 4.0, 5.0, 6.0};
+        TestProbe<DeviceManager.DeviceRegistered> registeredProbe = testKit.createTestProbe(DeviceManager.DeviceRegistered.class);
+        Map<String, ActorRef<Device.Command>> devices = new HashMap<>();
+        for (String deviceId : deviceIds) {
+            group.tell(new DeviceManager.RequestTrackDevice("lossy", deviceId, registeredProbe.getRef()));
+            devices.put(deviceId, registeredProbe.receiveMessage().device);
+        }
+        TestProbe<DeviceManager.GroupTemperaturesRecorded> recordedProbe =
+                testKit.createTestProbe(DeviceManager.GroupTemperaturesRecorded.class);
+        group.tell(new DeviceManager.RecordGroupTemperatures(0L, "lossy", deviceIds, values, recordedProbe.getRef()));
+        recordedProbe.receiveMessage();
+        TestProbe<DeviceManager.RespondAllTemperatures> allTempProbe =
+                testKit.createTestProbe(DeviceManager.RespondAllTemperatures.class);
+        group.tell(new DeviceManager.RequestAllTemperatures(1L, "lossy", allTempProbe.getRef()));
+        assertEquals(6, allTempProbe.receiveMessage().temperatures.size());
+
+        // device6在某个分区里, 该分区就是device6的父actor
+        ActorPath partitionPath = devices.get("device6").path().parent();
+        Set<String> inPartition = devices.entrySet().stream()
+                .filter(e -> e.getValue().path().parent().equals(partitionPath))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        Adapter.toClassic(testKit.system()).actorSelection(partitionPath)
+                .tell(DeviceGroup.Crash.INSTANCE, akka.actor.ActorRef.noSender());
+
+        group.tell(new DeviceManager.RequestAllTemperatures(2L, "lossy", allTempProbe.getRef()));
+        DeviceManager.RespondAllTemperatures partial = allTempProbe.receiveMessage();
+        assertEquals(2L, partial.requestId);
+        for (int i = 0; i < deviceIds.size(); i++) {
+            String deviceId = deviceIds.get(i);
+            assertEquals(deviceId, inPartition.contains(deviceId)
+                            ? DeviceManager.DeviceTimedOut.INSTANCE
+                            : new DeviceManager.Temperature(values[i]),
+                    partial.temperatures.get(deviceId));
+        }
+
+        // 分区汇总同样只等queryTimeout
+        TestProbe<DeviceManager.ReplyDeviceList> deviceListProbe = testKit.createTestProbe(DeviceManager.ReplyDeviceList.class);
+        group.tell(new DeviceManager.RequestDeviceList(3L, "lossy", deviceListProbe.getRef()));
+        Set<String> listed = deviceListProbe.receiveMessage().ids;
+        assertEquals(false, listed.isEmpty());
+        assertEquals(Collections.emptySet(), listed.stream().filter(inPartition::contains).collect(Collectors.toSet()));
+
+        // 分区恢复后收集照常进行, 不会一直停在进行中
+        allTempProbe.awaitAssert(Duration.ofSeconds(5), () -> {
+            group.tell(new DeviceManager.RequestAllTemperatures(4L, "lossy", allTempProbe.getRef()));
+            Map<String, DeviceManager.TemperatureReading> temperatures = allTempProbe.receiveMessage().temperatures;
+            for (int i = 0; i < deviceIds.size(); i++) {
+                assertEquals(new DeviceManager.Temperature(values[i]), temperatures.get(deviceIds.get(i)));
+            }
+            return null;
+        });
+    }
+}